@@ -16,6 +16,8 @@ import org.slf4j.LoggerFactory;
 import ru.flume.sink.writer.OutputWriter;
 import ru.flume.sink.writer.FileManager;
 import ru.flume.sink.counter.FileSinkCounter;
+import ru.flume.sink.counter.LagTracker;
+import ru.flume.sink.path.PathTemplate;
 
 /**
  * Сток Flume, позволяющий фасовать взодящие событие по отдельным файлам. Имя файла, в которое будет записано событие,
@@ -24,12 +26,17 @@ import ru.flume.sink.counter.FileSinkCounter;
  * 
  *<ul>
  *<li><code>fileNameHeader</code> - заголовок, в котором передается имя файла ('file')
+ *<li><code>pathTemplate</code> - шаблон имени файла из заголовков и времени события (если задан, используется вместо
+ *    <code>fileNameHeader</code>), см. {@link PathTemplate}
  *<li><code>batchSize</code> - кол-во событий, обрабатываемых за одну транзацию (1000)
- *<li><code>eventSeparator</code> - разделитель событий ('\n')
+ *<li><code>serializer</code> - формат записи событий (text или binary)
+ *<li><code>eventSeparator</code> - разделитель событий для формата text ('\n')
  *<li><code>idleTimeout</code> - время неактивности файла в мс, после которого он будет закрыт (1 час)
  *<li><code>flushTimeout</code> - время неактивности файла в мс, после которого данные из буфера сбросятся в файл (1 мин.)
  *<li><code>checkPeriod</code> - как часто проверять наличие неактивный файлов (1 мин)
+ *<li><code>sharedManager</code> - имя общего для нескольких стоков менеджера файлов (не задано - свой для каждого стока)
  *<li><code>compressor</code> - метод сжатия данных (gzip или text)
+ *<li><code>lag.timestampHeader</code> - заголовок со временем события для учета задержки записи, см. {@link LagTracker}
  *</ul>
  */
 public class FileSink extends AbstractSink implements Configurable {
@@ -42,26 +49,66 @@ public class FileSink extends AbstractSink implements Configurable {
     private static final String PARAM_BATCH_SIZE = "sink.batchSize";
     private static final int DEFAULT_BATCH_SIZE = 1000;
 
-    private int batchSize;
-    private String fileNameHeader;
+    private static final String PARAM_SHARED_MANAGER = "sink.sharedManager";
+
+    // пауза после транзакции при нагрузке на диски (мс), умножается на степень нагрузки
+    private static final long THROTTLE_PAUSE = 1000;
+    // нагрузка, начиная с которой сток просит у Flume паузу (BACKOFF) вместо собственной короткой паузы
+    private static final double HIGH_PRESSURE = 0.75;
+
+    // могут меняться при переконфигурировании работающего стока
+    private volatile int batchSize;
+    private volatile String fileNameHeader;
+    private volatile PathTemplate pathTemplate;
+    private volatile LagTracker lagTracker;
     private FileManager fileManager;    
     private FileSinkCounter counter;
+    private double lastPressure;
 
 //----------------------------------------//
     @Override
     public void configure(Context context) {
-        this.fileNameHeader = context.getString(PARAM_HEADER_FILE_NAME, DEFAULT_HEADER_FILE_NAME);
-        this.batchSize = context.getInteger(PARAM_BATCH_SIZE, DEFAULT_BATCH_SIZE);
+        // все параметры сначала проверяются, и только затем применяются - некорректная повторная конфигурация не
+        // должна оставлять сток настроенным наполовину
+        String newFileNameHeader = context.getString(PARAM_HEADER_FILE_NAME, DEFAULT_HEADER_FILE_NAME);
+        int newBatchSize = context.getInteger(PARAM_BATCH_SIZE, DEFAULT_BATCH_SIZE);
+        if (newBatchSize <= 0) {
+            throw new IllegalArgumentException("Batch size should be greater than 0");
+        }
+        PathTemplate newPathTemplate = PathTemplate.createTemplate(context);
+        LagTracker newLagTracker = LagTracker.createTracker(context, getName());
 
         if (this.counter == null) {
             this.counter = new FileSinkCounter(getName());            
         }
+        // повторная конфигурация применяется к уже работающему менеджеру без закрытия открытых файлов
         if (this.fileManager == null) {
-            this.fileManager = new FileManager(context, counter);
+            // стоки с одинаковым именем общего менеджера пишут в одни и те же открытые файлы
+            String sharedManager = context.getString(PARAM_SHARED_MANAGER, null);
+            this.fileManager = sharedManager != null
+                    ? FileManager.acquire(sharedManager, context)
+                    : new FileManager(context, counter);
+        } else if (this.fileManager.isShared()) {
+            // иначе стоки с разной конфигурацией перетирали бы параметры общего менеджера друг друга
+            LOG.info("Sink '{}' uses shared FileManager, its file parameters are not changed", getName());
+        } else {
+            this.fileManager.configure(context);
+        }
+
+        this.fileNameHeader = newFileNameHeader;
+        this.batchSize = newBatchSize;
+        this.pathTemplate = newPathTemplate;
+        if (this.lagTracker != null) {
+            this.lagTracker.close();
+        }
+        if (newLagTracker != null) {
+            newLagTracker.register();
         }
+        this.lagTracker = newLagTracker;
         
-        LOG.info("Created File-Sink with params:"
+        LOG.info("Configured File-Sink with params:"
                 + "\n\tHeader (file name): " + fileNameHeader
+                + "\n\tPath template: " + pathTemplate
                 + "\n\tBatch size: " + batchSize);
     }
 
@@ -77,6 +124,18 @@ public class FileSink extends AbstractSink implements Configurable {
 //----------------------------------------//    
     @Override
     public Sink.Status process() throws EventDeliveryException {
+        // при нагрузке на диски сток читает меньше событий за раз и делает паузу, пропорциональную нагрузке. Паузу у
+        // Flume (BACKOFF, которую тот увеличивает с каждым разом) сток просит, только когда нагрузка высокая или
+        // растет, а если писать некуда - не читает канал вовсе
+        double pressure = fileManager.getPressure();
+        boolean rising = pressure > lastPressure;
+        lastPressure = pressure;
+        if (pressure >= 1) {
+            counter.incTransactionThrottled();
+            return Sink.Status.BACKOFF;
+        }
+        int limit = pressure > 0 ? Math.max(1, (int) (batchSize * (1 - pressure))) : batchSize;
+        
         Channel channel = getChannel();
         Transaction transaction = channel.getTransaction();
         Sink.Status result = Sink.Status.READY;
@@ -87,19 +146,21 @@ public class FileSink extends AbstractSink implements Configurable {
         
         try {
             transaction.begin();            
-            for (int i = 0; i < batchSize; i++) {
+            for (int i = 0; i < limit; i++) {
                 Event event = channel.take();
                 if (event != null) {
                     attemps++;
-                    String fileName = event.getHeaders().get(fileNameHeader);                    
+                    String fileName = pathTemplate != null
+                            ? pathTemplate.resolve(event)
+                            : event.getHeaders().get(fileNameHeader);
 
                     // события без интересующих наз заголовков будут пропускаться
                     if (fileName == null) {
                         continue;
                     }
-                    OutputWriter writer = fileManager.getWriter(fileName);
                     try {
-                        writer.write(event);
+                        OutputWriter writer = fileManager.write(fileName, event);
+                        trackLag(fileName, event, writer);
                         bytes += event.getBody().length;
                         succeed++;
                     } catch (IOException e) {                        
@@ -121,6 +182,14 @@ public class FileSink extends AbstractSink implements Configurable {
             if (attemps > 0) {
                 counter.incTransactionSucceed();
             }
+            if (pressure > 0 && result == Sink.Status.READY) {
+                counter.incTransactionThrottled();
+                if (pressure >= HIGH_PRESSURE || rising) {
+                    result = Sink.Status.BACKOFF;
+                } else {
+                    pause(pressure);
+                }
+            }
         } catch (Exception ex) {
             transaction.rollback();
             counter.incTransactionFailed();
@@ -134,12 +203,40 @@ public class FileSink extends AbstractSink implements Configurable {
         return result;
     }
 
+//----------------------------------------//
+    private static void pause(double pressure) {
+        try {
+            Thread.sleep((long) (THROTTLE_PAUSE * pressure));
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+//----------------------------------------//
+    private void trackLag(String fileName, Event event, OutputWriter writer) {
+        LagTracker tracker = lagTracker;
+        if (tracker == null) {
+            return;
+        }
+        long eventTime = tracker.sample(event);
+        if (eventTime >= 0) {
+            writer.trackLag(tracker.getHistogram(fileName), eventTime);
+        }
+    }
+
 //----------------------------------------//    
     @Override
     public void stop() {
         LOG.info("Sink '{}' trying to shutdown", getName());
         super.stop();
-        fileManager.closeAll();
+        // общий менеджер закроет файлы, только когда его освободит последний сток
+        if (fileManager != null) {
+            fileManager.release();
+            fileManager = null;
+        }
+        if (lagTracker != null) {
+            lagTracker.close();
+        }
         LOG.info("'{}' stopped.", getName());
     }
 }
@@ -3,7 +3,6 @@ package ru.flume.sink.compressor;
 
 import java.io.IOException;
 import java.io.OutputStream;
-import java.lang.reflect.InvocationTargetException;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -11,6 +10,8 @@ import org.apache.flume.Context;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import ru.flume.sink.util.Plugins;
+
 /**
  * Класс, предоставляющий поток для записи, использующий (или не использующий) некоторый алгоритм сжатия.
  */
@@ -18,7 +19,8 @@ public abstract class Compressor {
 
     private static final Logger LOG = LoggerFactory.getLogger(Compressor.class);
     
-    public static final Map<String, Class> ALIASES = new HashMap<String, Class>() {{
+    public static final Map<String, Class<? extends Compressor>> ALIASES
+            = new HashMap<String, Class<? extends Compressor>>() {{
         put("gzip", GzipCompressor.class);
         put("text", DummyCompressor.class);
     }};
@@ -53,6 +55,24 @@ public abstract class Compressor {
      */
     public abstract OutputStream wrap(OutputStream out) throws IOException;
     
+//----------------------------------------//
+    /**
+     * Можно ли завершить поток и начать новый поверх того же файла так, чтобы результат корректно читался целиком
+     * (например, несколько членов GZIP подряд). Это позволяет читать файл, начиная с границы такого потока.
+     */
+    public boolean isConcatenable() {
+        return false;
+    }
+
+//----------------------------------------//    
+    /**
+     * Попадают ли в файл все записанные в поток данные при его flush(). Если нет, часть данных может оставаться в
+     * буфере алгоритма сжатия вплоть до завершения потока.
+     */
+    public boolean isFlushable() {
+        return true;
+    }
+
 //----------------------------------------//    
     /**
      * @return расширение файла, соответствующее типу сжатия
@@ -71,37 +91,11 @@ public abstract class Compressor {
             LOG.info("Compressor for files are not defined, writing data as text");
             return new DummyCompressor(context);
         }
-        Class clazz = ALIASES.get(compressor);
-        if (clazz == null) {
-            try {
-                clazz = Class.forName(compressor);
-            } catch (ClassNotFoundException ex) {
-                LOG.error("Compressor class '{}' not found, data will be written without compression", compressor);
-                return new DummyCompressor(context);
-            }
-        }
-        try {
-            Object result = clazz.getConstructor(Context.class).newInstance(context);
-            if (result instanceof Compressor) {
-                return (Compressor) result;
-            } else {
-                LOG.error("Class '{}' are not instance of '{}', data will be written without compression",
-                        clazz.getName(), Compressor.class.getName());
-
-                return new DummyCompressor(context);
-            }
-        } catch (NoSuchMethodException | IllegalAccessException | IllegalArgumentException | InstantiationException | SecurityException ex) {
-
-            LOG.error("Class '{}' should have public constructor with single argument of '{}'",
-                    clazz.getName(), Context.class.getName());
-
-        } catch (InvocationTargetException ex) {
-            LOG.error("Unexpected exception in constructor of class '" + clazz.getName() + "'", ex);
+        Compressor result = Plugins.create(compressor, ALIASES, Compressor.class, context);
+        if (result == null) {
+            LOG.error("Data will be written without compression");
+            return new DummyCompressor(context);
         }
-
-        LOG.error("Unable to instantinate compressor '{}',"
-                + " data will be written without compression", clazz.getName());
-
-        return new DummyCompressor(context);
+        return result;
     }   
 }
@@ -16,4 +16,9 @@ public class DummyCompressor extends Compressor {
     public OutputStream wrap(OutputStream out) {
         return out;
     }
+
+    @Override
+    public boolean isConcatenable() {
+        return true;
+    }
 }
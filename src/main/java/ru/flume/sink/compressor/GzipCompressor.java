@@ -28,6 +28,16 @@ public class GzipCompressor extends Compressor {
         return new GZIPOutputStream(out, bufferSize, syncFlush);
     }
 
+    @Override
+    public boolean isConcatenable() {
+        return true;
+    }
+
+    @Override
+    public boolean isFlushable() {
+        return syncFlush;
+    }
+
     @Override
     public String getExtension() {
         return super.getExtension() + ".gz";
@@ -14,6 +14,8 @@ public class FileSinkCounter extends MonitoredCounterGroup implements FileSinkCo
     private static final String COUNTER_TRANSACTION_EMPTY = "sink.transaction.empty";
     // Неудачные транзакции
     private static final String COUNTER_TRANSACTION_FAILED = "sink.transaction.failed";
+    // Транзакции, замедленные (или пропущенные) из-за нагрузки на диски
+    private static final String COUNTER_TRANSACTION_THROTTLED = "sink.transaction.throttled";
     // Созданные файлы
     private static final String COUNTER_FILES_CREATED = "sink.file.creation.count";
     // Закрытые (сформированные) файлы
@@ -26,17 +28,30 @@ public class FileSinkCounter extends MonitoredCounterGroup implements FileSinkCo
     private static final String COUNTER_EVENT_DRAIN_SUCCESS = "sink.event.drain.sucess";
     // Число записанных байт
     private static final String COUNTER_EVENT_DRAIN_BYTES = "sink.event.drain.bytes";
+    // Число событий, записанных в карантин из-за ошибок записи в свои файлы
+    private static final String COUNTER_EVENT_QUARANTINED = "sink.event.quarantined";
+    // Наибольшая нагрузка на тома в процентах (0 - норма, 100 - запись остановлена)
+    private static final String COUNTER_DISK_PRESSURE = "sink.disk.pressure";
+    // Наименьшее свободное место на томах в байтах
+    private static final String COUNTER_DISK_FREE = "sink.disk.free.min";
+    // Наибольшее (среди томов) среднее время записи и сброса данных на диск в мс
+    private static final String COUNTER_DISK_LATENCY = "sink.disk.latency.max";
 
     private static final String[] ATTRIBUTES = {
         COUNTER_TRANSACTION_SUCCEED,
         COUNTER_TRANSACTION_EMPTY,
         COUNTER_TRANSACTION_FAILED,
+        COUNTER_TRANSACTION_THROTTLED,
         COUNTER_FILES_CREATED,
         COUNTER_FILES_CLOSED,
         COUNTER_FILES_FAILED,
         COUNTER_EVENT_DRAIN_ATTEMPT,
         COUNTER_EVENT_DRAIN_SUCCESS,
-        COUNTER_EVENT_DRAIN_BYTES
+        COUNTER_EVENT_DRAIN_BYTES,
+        COUNTER_EVENT_QUARANTINED,
+        COUNTER_DISK_PRESSURE,
+        COUNTER_DISK_FREE,
+        COUNTER_DISK_LATENCY
     };
 
     public long incTransactionSucceed() {
@@ -65,6 +80,15 @@ public class FileSinkCounter extends MonitoredCounterGroup implements FileSinkCo
     public long getTransactionFailed() {
         return get(COUNTER_TRANSACTION_FAILED);
     }    
+
+    public long incTransactionThrottled() {
+        return increment(COUNTER_TRANSACTION_THROTTLED);
+    }
+
+    @Override
+    public long getTransactionThrottled() {
+        return get(COUNTER_TRANSACTION_THROTTLED);
+    }
     
     public long incFilesCreated() {
         return increment(COUNTER_FILES_CREATED);
@@ -119,4 +143,34 @@ public class FileSinkCounter extends MonitoredCounterGroup implements FileSinkCo
     public long getBytesDrainSucceed() {
         return get(COUNTER_EVENT_DRAIN_BYTES);
     }    
+
+    public long incEventQuarantined() {
+        return increment(COUNTER_EVENT_QUARANTINED);
+    }
+
+    @Override
+    public long getEventQuarantined() {
+        return get(COUNTER_EVENT_QUARANTINED);
+    }
+
+    public void setDiskState(long pressure, long freeSpace, long latency) {
+        set(COUNTER_DISK_PRESSURE, pressure);
+        set(COUNTER_DISK_FREE, freeSpace);
+        set(COUNTER_DISK_LATENCY, latency);
+    }
+
+    @Override
+    public long getDiskPressure() {
+        return get(COUNTER_DISK_PRESSURE);
+    }
+
+    @Override
+    public long getDiskFreeMin() {
+        return get(COUNTER_DISK_FREE);
+    }
+
+    @Override
+    public long getDiskLatencyMax() {
+        return get(COUNTER_DISK_LATENCY);
+    }
 }
@@ -4,10 +4,18 @@ public interface FileSinkCounterMBean {
 
     long getBytesDrainSucceed();
 
+    long getDiskFreeMin();
+
+    long getDiskLatencyMax();
+
+    long getDiskPressure();
+
     long getEventDrainAttemps();
 
     long getEventDrainSucceed();
 
+    long getEventQuarantined();
+
     long getFilesClosed();
 
     long getFilesCreated();
@@ -19,6 +27,8 @@ public interface FileSinkCounterMBean {
     long getTransactionFailed();
 
     long getTransactionSucceed();
+
+    long getTransactionThrottled();
     
     long getStartTime();
 
@@ -0,0 +1,68 @@
+package ru.flume.sink.counter;
+
+import java.util.Arrays;
+
+/**
+ * Распределение задержек записи (мс) для одного префикса имен файлов. Хранит только последние N замеров (кольцевой
+ * буфер), поэтому расход памяти ограничен, а перцентили отражают недавнее состояние. Перцентили вычисляются только при
+ * чтении через JMX.
+ */
+public class LagHistogram implements LagHistogramMBean {
+
+    private final String prefix;
+    private final long[] samples;
+
+    private long count;
+
+    public LagHistogram(String prefix, int size) {
+        this.prefix = prefix;
+        this.samples = new long[size];
+    }
+
+    public synchronized void record(long lag) {
+        samples[(int) (count % samples.length)] = lag;
+        count++;
+    }
+
+    @Override
+    public String getPrefix() {
+        return prefix;
+    }
+
+    @Override
+    public synchronized long getCount() {
+        return count;
+    }
+
+    @Override
+    public long getLagMedian() {
+        return percentile(0.5);
+    }
+
+    @Override
+    public long getLag95() {
+        return percentile(0.95);
+    }
+
+    @Override
+    public long getLag99() {
+        return percentile(0.99);
+    }
+
+    @Override
+    public long getLagMax() {
+        return percentile(1);
+    }
+
+    private long percentile(double rank) {
+        long[] sorted;
+        synchronized (this) {
+            sorted = Arrays.copyOf(samples, (int) Math.min(count, samples.length));
+        }
+        if (sorted.length == 0) {
+            return 0;
+        }
+        Arrays.sort(sorted);
+        return sorted[(int) Math.ceil(rank * sorted.length) - 1];
+    }
+}
@@ -0,0 +1,16 @@
+package ru.flume.sink.counter;
+
+public interface LagHistogramMBean {
+
+    String getPrefix();
+
+    long getCount();
+
+    long getLagMedian();
+
+    long getLag95();
+
+    long getLag99();
+
+    long getLagMax();
+}
@@ -0,0 +1,151 @@
+package ru.flume.sink.counter;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.flume.Context;
+import org.apache.flume.Event;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Учет задержки между временем события (из заголовка) и моментом, когда событие сброшено на диск. Задержки
+ * группируются по префиксам имен файлов и публикуются через JMX как перцентили
+ * (<code>ru.flume.sink:type=FileSinkLag,sink=&lt;имя стока&gt;,prefix=&lt;префикс&gt;</code>). Чтобы накладные
+ * расходы оставались ограниченными, учитывается только каждое N-ое событие. Непотокобезопасный.
+ */
+public class LagTracker {
+
+    private static final Logger LOG = LoggerFactory.getLogger(LagTracker.class);
+
+    private static final String PARAM_TIMESTAMP_HEADER = "sink.lag.timestampHeader";
+
+    private static final String PARAM_PREFIXES = "sink.lag.prefixes";
+
+    private static final String PARAM_SAMPLE_RATE = "sink.lag.sampleRate";
+    private static final int DEFAULT_SAMPLE_RATE = 100;
+
+    private static final String PARAM_RESERVOIR = "sink.lag.reservoir";
+    private static final int DEFAULT_RESERVOIR = 1024;
+
+    private final String sinkName;
+    private final String timestampHeader;
+    private final int sampleRate;
+    // от длинных префиксов к коротким, последний - пустой префикс для всех остальных файлов
+    private final List<LagHistogram> histograms = new ArrayList<>();
+    private final List<ObjectName> names = new ArrayList<>();
+
+    private long seen;
+
+//----------------------------------------//
+    public LagTracker(Context context, String sinkName) {
+        this.sinkName = sinkName;
+        this.timestampHeader = context.getString(PARAM_TIMESTAMP_HEADER);
+        this.sampleRate = context.getInteger(PARAM_SAMPLE_RATE, DEFAULT_SAMPLE_RATE);
+        int reservoir = context.getInteger(PARAM_RESERVOIR, DEFAULT_RESERVOIR);
+        if (sampleRate <= 0 || reservoir <= 0) {
+            throw new IllegalArgumentException("Lag sample rate and reservoir size should be greater than 0");
+        }
+
+        String prefixes = context.getString(PARAM_PREFIXES, "");
+        for (String prefix : prefixes.split(",")) {
+            if (!StringUtils.isBlank(prefix)) {
+                histograms.add(new LagHistogram(prefix.trim(), reservoir));
+            }
+        }
+        histograms.sort(Comparator.comparing((LagHistogram h) -> h.getPrefix().length()).reversed());
+        histograms.add(new LagHistogram("", reservoir));
+        LOG.info("Tracking write lag by header '{}' for every {} event, prefixes: {}",
+                timestampHeader, sampleRate, prefixes);
+    }
+
+//----------------------------------------//
+    /**
+     * Регистрирует распределения задержек в JMX. Выполняется отдельно от создания, чтобы новый учет при повторной
+     * конфигурации регистрировался под теми же именами только после снятия регистрации старого (см. {@link #close()}).
+     */
+    public void register() {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        for (LagHistogram histogram : histograms) {
+            try {
+                ObjectName name = new ObjectName("ru.flume.sink:type=FileSinkLag,sink=" + ObjectName.quote(sinkName)
+                        + ",prefix=" + ObjectName.quote(histogram.getPrefix()));
+                server.registerMBean(histogram, name);
+                names.add(name);
+            } catch (Exception ex) {
+                LOG.warn("Unable to register lag MBean for prefix '" + histogram.getPrefix() + "'", ex);
+            }
+        }
+    }
+
+//----------------------------------------//
+    /**
+     * Создает учет задержек на основе конфигурации Flume. В JMX он еще не зарегистрирован (см. {@link #register()}).
+     *
+     * @return учет задержек или null, если он не включен (не задан заголовок со временем события)
+     * @throws IllegalArgumentException если конфигурация некорректна
+     */
+    public static LagTracker createTracker(Context context, String sinkName) {
+        if (StringUtils.isBlank(context.getString(PARAM_TIMESTAMP_HEADER))) {
+            return null;
+        }
+        return new LagTracker(context, sinkName);
+    }
+
+//----------------------------------------//
+    /**
+     * Решает, учитывать ли событие.
+     *
+     * @return время события или -1, если событие не учитывается
+     */
+    public long sample(Event event) {
+        if (++seen % sampleRate != 0) {
+            return -1;
+        }
+        String value = event.getHeaders().get(timestampHeader);
+        if (value != null) {
+            try {
+                return Long.parseLong(value);
+            } catch (NumberFormatException ex) {
+                // событие с некорректным временем не учитывается
+            }
+        }
+        return -1;
+    }
+
+//----------------------------------------//
+    /**
+     * @return распределение задержек для файла с указанным именем
+     */
+    public LagHistogram getHistogram(String fileName) {
+        for (LagHistogram histogram : histograms) {
+            if (fileName.startsWith(histogram.getPrefix())) {
+                return histogram;
+            }
+        }
+        // недостижимо - пустой префикс подходит любому имени
+        return histograms.get(histograms.size() - 1);
+    }
+
+//----------------------------------------//
+    /**
+     * Снимает регистрацию в JMX.
+     */
+    public void close() {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        for (ObjectName name : names) {
+            try {
+                server.unregisterMBean(name);
+            } catch (Exception ex) {
+                LOG.warn("Unable to unregister lag MBean " + name, ex);
+            }
+        }
+        names.clear();
+    }
+}
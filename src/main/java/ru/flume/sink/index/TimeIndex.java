@@ -0,0 +1,94 @@
+package ru.flume.sink.index;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.apache.flume.Context;
+import org.apache.flume.Event;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Настройки индекса по времени - файла-спутника, который пишется вместе с файлом данных и позволяет читателям сразу
+ * перейти к нужному диапазону событий, не распаковывая файл целиком.
+ * <p>
+ * Индекс - текстовый файл с расширением {@value #EXTENSION} рядом с файлом данных. Каждая строка описывает одно
+ * выбранное событие: порядковый номер события в файле, его время (из заголовка, -1 если заголовка нет) и смещение в
+ * байтах, с которого можно начать чтение, разделенные табуляцией. Для сжатых файлов смещение указывает на начало
+ * отдельного члена GZIP, т.е. распаковку можно начинать прямо с него.
+ */
+public class TimeIndex {
+
+    private static final Logger LOG = LoggerFactory.getLogger(TimeIndex.class);
+
+    public static final String EXTENSION = ".idx";
+
+    private static final String PARAM_ENABLED = "sink.index";
+
+    private static final String PARAM_TIMESTAMP_HEADER = "sink.index.timestampHeader";
+    private static final String DEFAULT_TIMESTAMP_HEADER = "timestamp";
+
+    private static final String PARAM_INTERVAL = "sink.index.interval";
+    private static final int DEFAULT_INTERVAL = 1000;
+
+    private final String timestampHeader;
+    private final int interval;
+
+//----------------------------------------//
+    public TimeIndex(Context context) {
+        this.timestampHeader = context.getString(PARAM_TIMESTAMP_HEADER, DEFAULT_TIMESTAMP_HEADER);
+        this.interval = context.getInteger(PARAM_INTERVAL, DEFAULT_INTERVAL);
+        if (interval <= 0) {
+            throw new IllegalArgumentException("Index interval should be greater than 0");
+        }
+        LOG.info("Time index enabled: every {} events, timestamp header '{}'", interval, timestampHeader);
+    }
+
+//----------------------------------------//
+    /**
+     * Создает настройки индекса на основе конфигурации Flume.
+     *
+     * @return настройки индекса или null, если индекс не включен
+     */
+    public static TimeIndex createIndex(Context context) {
+        if (!context.getBoolean(PARAM_ENABLED, false)) {
+            return null;
+        }
+        return new TimeIndex(context);
+    }
+
+//----------------------------------------//
+    /**
+     * @return нужно ли добавлять в индекс событие с указанным порядковым номером
+     */
+    public boolean isSampled(long ordinal) {
+        return ordinal % interval == 0;
+    }
+
+//----------------------------------------//
+    /**
+     * @return время события из заголовка или -1, если заголовка нет или он некорректен
+     */
+    public long getTimestamp(Event event) {
+        String value = event.getHeaders().get(timestampHeader);
+        if (value != null) {
+            try {
+                return Long.parseLong(value);
+            } catch (NumberFormatException ex) {
+                // некорректное время просто не попадет в индекс
+            }
+        }
+        return -1;
+    }
+
+//----------------------------------------//
+    /**
+     * Открывает временный файл индекса для записи.
+     *
+     * @param temp  временный файл индекса
+     * @throws IOException  если невозможно создать файл
+     */
+    public TimeIndexWriter open(File temp) throws IOException {
+        return new TimeIndexWriter(temp);
+    }
+}
@@ -0,0 +1,58 @@
+package ru.flume.sink.index;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Запись индекса для одного файла данных. Как и сам файл данных, индекс пишется во временный файл и переименовывается
+ * при закрытии. Непотокобезопасный.
+ */
+public class TimeIndexWriter {
+
+    private static final Logger LOG = LoggerFactory.getLogger(TimeIndexWriter.class);
+
+    private final File temp;
+    private final Writer writer;
+
+//----------------------------------------//
+    TimeIndexWriter(File temp) throws IOException {
+        this.temp = temp;
+        this.writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(temp), StandardCharsets.UTF_8));
+    }
+
+//----------------------------------------//
+    /**
+     * Добавляет запись в индекс.
+     *
+     * @param ordinal   порядковый номер события в файле (с 0)
+     * @param timestamp время события или -1
+     * @param offset    смещение в файле, с которого можно начать чтение, или -1, если оно неизвестно
+     */
+    public void add(long ordinal, long timestamp, long offset) throws IOException {
+        writer.write(ordinal + "\t" + timestamp + "\t" + offset + "\n");
+    }
+
+//----------------------------------------//
+    /**
+     * Закрывает индекс и переименовывает его в соответствии с итоговым именем файла данных.
+     *
+     * @param output    итоговый файл данных
+     */
+    public void commit(File output) {
+        File index = new File(output.getPath() + TimeIndex.EXTENSION);
+        try {
+            writer.close();
+        } catch (IOException ex) {
+            LOG.error("Exception while close index file: " + index, ex);
+        }
+        temp.renameTo(index);
+    }
+}
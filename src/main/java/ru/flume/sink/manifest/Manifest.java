@@ -0,0 +1,124 @@
+package ru.flume.sink.manifest;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.zip.CRC32;
+import java.util.zip.Checksum;
+
+import org.apache.flume.Context;
+import org.apache.flume.Event;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Настройки манифеста - файла-спутника, который появляется рядом с файлом данных сразу после его закрытия и описывает
+ * готовый файл: контрольную сумму, размер, количество событий и время первого и последнего события. Контрольная сумма
+ * считается по мере записи, так что получателям файлов не нужно перечитывать их целиком.
+ * <p>
+ * Манифест - текстовый файл с расширением {@value #EXTENSION} из строк вида "ключ=значение". Пишется во временный файл
+ * и атомарно переименовывается, поэтому появление манифеста означает, что и файл данных, и сам манифест готовы.
+ */
+public class Manifest {
+
+    private static final Logger LOG = LoggerFactory.getLogger(Manifest.class);
+
+    public static final String EXTENSION = ".manifest";
+
+    private static final String PARAM_ENABLED = "sink.manifest";
+
+    private static final String PARAM_TIMESTAMP_HEADER = "sink.manifest.timestampHeader";
+    private static final String DEFAULT_TIMESTAMP_HEADER = "timestamp";
+
+    private static final String PARAM_DIGEST = "sink.manifest.digest";
+
+    // CRC32C появился только в Java 9 - на Java 8 используется CRC32
+    private static final String CRC32C_CLASS = "java.util.zip.CRC32C";
+
+    private final String timestampHeader;
+    private final String digest;
+    private final Class<?> crc32c;
+
+//----------------------------------------//
+    /**
+     * @throws IllegalArgumentException если указанный алгоритм хеширования не поддерживается
+     */
+    public Manifest(Context context) {
+        this.timestampHeader = context.getString(PARAM_TIMESTAMP_HEADER, DEFAULT_TIMESTAMP_HEADER);
+        this.digest = context.getString(PARAM_DIGEST, null);
+        if (digest != null) {
+            try {
+                MessageDigest.getInstance(digest);
+            } catch (NoSuchAlgorithmException ex) {
+                throw new IllegalArgumentException("Unsupported manifest digest: " + digest, ex);
+            }
+        }
+        Class<?> crc = null;
+        try {
+            crc = Class.forName(CRC32C_CLASS);
+        } catch (ClassNotFoundException ex) {
+            LOG.warn("CRC32C is not available, manifest will contain CRC32");
+        }
+        this.crc32c = crc;
+        LOG.info("Manifest enabled: checksum {}, digest {}, timestamp header '{}'",
+                crc32c != null ? "CRC32C" : "CRC32", digest, timestampHeader);
+    }
+
+//----------------------------------------//
+    /**
+     * Создает настройки манифеста на основе конфигурации Flume.
+     *
+     * @return настройки манифеста или null, если манифест не включен
+     */
+    public static Manifest createManifest(Context context) {
+        if (!context.getBoolean(PARAM_ENABLED, false)) {
+            return null;
+        }
+        return new Manifest(context);
+    }
+
+//----------------------------------------//
+    /**
+     * @return время события из заголовка или -1, если заголовка нет или он некорректен
+     */
+    long getTimestamp(Event event) {
+        String value = event.getHeaders().get(timestampHeader);
+        if (value != null) {
+            try {
+                return Long.parseLong(value);
+            } catch (NumberFormatException ex) {
+                // некорректное время просто не попадет в манифест
+            }
+        }
+        return -1;
+    }
+
+//----------------------------------------//
+    /**
+     * Начинает подсчет контрольной суммы и статистики для нового файла данных.
+     */
+    public ManifestWriter open() {
+        Checksum checksum;
+        String checksumName;
+        if (crc32c != null) {
+            try {
+                checksum = (Checksum) crc32c.getDeclaredConstructor().newInstance();
+                checksumName = "crc32c";
+            } catch (ReflectiveOperationException ex) {
+                throw new IllegalStateException("Unable to create CRC32C", ex);
+            }
+        } else {
+            checksum = new CRC32();
+            checksumName = "crc32";
+        }
+        MessageDigest messageDigest = null;
+        if (digest != null) {
+            try {
+                messageDigest = MessageDigest.getInstance(digest);
+            } catch (NoSuchAlgorithmException ex) {
+                // алгоритм проверен при конфигурировании
+                throw new IllegalStateException(ex);
+            }
+        }
+        return new ManifestWriter(this, checksumName, checksum, messageDigest);
+    }
+}
@@ -0,0 +1,181 @@
+package ru.flume.sink.manifest;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.util.Locale;
+import java.util.zip.Checksum;
+
+import org.apache.flume.Event;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Подсчет контрольной суммы и статистики для одного файла данных и запись манифеста при его закрытии. Контрольная сумма
+ * считается по байтам, которые попадают на диск (т.е. после сжатия). Непотокобезопасный.
+ */
+public class ManifestWriter {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ManifestWriter.class);
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final Manifest manifest;
+    private final String checksumName;
+    private final Checksum checksum;
+    private final MessageDigest digest;
+
+    private long size;
+    private long events;
+    // время первого и последнего (в порядке записи) событий, а также наименьшее и наибольшее время - события могут
+    // приходить не по порядку
+    private long firstTimestamp = -1;
+    private long lastTimestamp = -1;
+    private long minTimestamp = -1;
+    private long maxTimestamp = -1;
+
+//----------------------------------------//
+    ManifestWriter(Manifest manifest, String checksumName, Checksum checksum, MessageDigest digest) {
+        this.manifest = manifest;
+        this.checksumName = checksumName;
+        this.checksum = checksum;
+        this.digest = digest;
+    }
+
+//----------------------------------------//
+    /**
+     * Оборачивает поток файла данных: все записанные в него байты учитываются в контрольной сумме и размере. Закрытие
+     * полученного потока закрывает и исходный.
+     */
+    public OutputStream wrap(OutputStream out) {
+        return new ChecksumOutputStream(out);
+    }
+
+//----------------------------------------//
+    /**
+     * Учитывает записанное событие.
+     */
+    public void add(Event event) {
+        events++;
+        long timestamp = manifest.getTimestamp(event);
+        if (timestamp >= 0) {
+            if (firstTimestamp < 0) {
+                firstTimestamp = timestamp;
+            }
+            lastTimestamp = timestamp;
+            addRange(timestamp, timestamp);
+        }
+    }
+
+//----------------------------------------//
+    /**
+     * Учитывает события другого файла - при объединении файлов (байты объединенного файла учитываются как обычно,
+     * через {@link #wrap(OutputStream)}). Файлы добавляются в порядке склеивания.
+     *
+     * @param other статистика склеиваемого файла
+     */
+    public void add(ManifestWriter other) {
+        events += other.events;
+        if (firstTimestamp < 0) {
+            firstTimestamp = other.firstTimestamp;
+        }
+        if (other.lastTimestamp >= 0) {
+            lastTimestamp = other.lastTimestamp;
+        }
+        if (other.minTimestamp >= 0) {
+            addRange(other.minTimestamp, other.maxTimestamp);
+        }
+    }
+
+    private void addRange(long min, long max) {
+        minTimestamp = minTimestamp < 0 ? min : Math.min(minTimestamp, min);
+        maxTimestamp = Math.max(maxTimestamp, max);
+    }
+
+//----------------------------------------//
+    /**
+     * @return настройки манифеста, по которым он пишется
+     */
+    public Manifest getManifest() {
+        return manifest;
+    }
+
+//----------------------------------------//
+    /**
+     * Записывает манифест для уже переименованного файла данных: сначала во временный файл, затем атомарно
+     * переименовывает его.
+     *
+     * @param output    итоговый файл данных
+     */
+    public void commit(File output) {
+        File file = new File(output.getPath() + Manifest.EXTENSION);
+        File temp = new File(file.getPath() + ".tmp");
+        try {
+            try (Writer writer = new OutputStreamWriter(new FileOutputStream(temp), StandardCharsets.UTF_8)) {
+                writer.write("file=" + output.getName() + "\n");
+                writer.write("size=" + size + "\n");
+                writer.write("events=" + events + "\n");
+                writer.write("timestamp.first=" + firstTimestamp + "\n");
+                writer.write("timestamp.last=" + lastTimestamp + "\n");
+                writer.write("timestamp.min=" + minTimestamp + "\n");
+                writer.write("timestamp.max=" + maxTimestamp + "\n");
+                writer.write(checksumName + "=" + String.format("%08x", checksum.getValue()) + "\n");
+                if (digest != null) {
+                    writer.write(digest.getAlgorithm().toLowerCase(Locale.ROOT) + "=" + hex(digest.digest()) + "\n");
+                }
+            }
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException ex) {
+            LOG.error("Unable to write manifest file: " + file, ex);
+            temp.delete();
+        }
+    }
+
+    private static String hex(byte[] bytes) {
+        char[] chars = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            chars[i * 2] = HEX[(bytes[i] >> 4) & 0xf];
+            chars[i * 2 + 1] = HEX[bytes[i] & 0xf];
+        }
+        return new String(chars);
+    }
+
+//****************************************//
+
+    private class ChecksumOutputStream extends FilterOutputStream {
+
+        ChecksumOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            checksum.update(b);
+            if (digest != null) {
+                digest.update((byte) b);
+            }
+            size++;
+        }
+
+        // FilterOutputStream по умолчанию пишет массив побайтно, поэтому переопределяем
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            checksum.update(b, off, len);
+            if (digest != null) {
+                digest.update(b, off, len);
+            }
+            size += len;
+        }
+    }
+}
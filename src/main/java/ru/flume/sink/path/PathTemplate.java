@@ -0,0 +1,364 @@
+package ru.flume.sink.path;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+
+import org.apache.flume.Context;
+import org.apache.flume.Event;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Шаблон имени файла, по которому имя вычисляется из заголовков и времени события (вместо того, чтобы клиент передавал
+ * готовое имя в заголовке). Например, <code>%{service}/%Y-%m-%d/%H.%{host}</code>.
+ * <p>
+ * Поддерживаемые элементы шаблона:
+ *<ul>
+ *<li><code>%{header}</code> - значение заголовка события
+ *<li><code>%Y</code>, <code>%y</code> - год (4 и 2 цифры)
+ *<li><code>%m</code>, <code>%d</code> - месяц и день
+ *<li><code>%H</code>, <code>%M</code>, <code>%S</code> - часы, минуты и секунды
+ *<li><code>%%</code> - символ '%'
+ *</ul>
+ * Шаблон разбирается один раз при конфигурировании. Поля времени вычисляются один раз на период самого мелкого поля
+ * шаблона (например, на час для <code>%Y-%m-%d/%H</code>), а для уже встречавшихся сочетаний значений заголовков и
+ * времени готовое имя берется из кеша без построения строки.
+ * Непотокобезопасный.
+ */
+public class PathTemplate {
+
+    private static final Logger LOG = LoggerFactory.getLogger(PathTemplate.class);
+
+    private static final String PARAM_TEMPLATE = "sink.pathTemplate";
+
+    private static final String PARAM_TIMESTAMP_HEADER = "sink.pathTemplate.timestampHeader";
+    private static final String DEFAULT_TIMESTAMP_HEADER = "timestamp";
+
+    private static final String PARAM_LOCAL_TIME = "sink.pathTemplate.useLocalTime";
+
+    private static final String PARAM_TIME_ZONE = "sink.pathTemplate.timeZone";
+
+    private static final String PARAM_CACHE_SIZE = "sink.pathTemplate.cacheSize";
+    private static final int DEFAULT_CACHE_SIZE = 10000;
+
+    // сколько последних периодов хранится с готовыми полями времени - события разных клиентов могут чередоваться
+    // между соседними периодами
+    private static final int TIME_CACHE_SIZE = 64;
+
+    private static final long SECOND = 1000;
+    private static final long MINUTE = 60 * SECOND;
+    private static final long HOUR = 60 * MINUTE;
+    private static final long DAY = 24 * HOUR;
+
+    private final String template;
+    private final String timestampHeader;
+    private final boolean useLocalTime;
+    private final TimeZone timeZone;
+    private final Calendar calendar;
+
+    // разобранный шаблон: строки (литералы), имена заголовков и поля времени
+    private final List<Object> parts = new ArrayList<>();
+    private final String[] headers;
+    private final char[] timeFields;
+    // длительность периода самого мелкого поля времени (мс); месяц и год считаются по дням
+    private final long period;
+
+    private final Map<Key, String> cache;
+    private final Map<Long, TimeValues> times;
+
+//----------------------------------------//
+    /**
+     * Создает шаблон на основе конфигурации Flume.
+     *
+     * @throws IllegalArgumentException если шаблон содержит неизвестные элементы
+     */
+    public PathTemplate(Context context) {
+        this.template = context.getString(PARAM_TEMPLATE);
+        this.timestampHeader = context.getString(PARAM_TIMESTAMP_HEADER, DEFAULT_TIMESTAMP_HEADER);
+        this.useLocalTime = context.getBoolean(PARAM_LOCAL_TIME, false);
+
+        String zone = context.getString(PARAM_TIME_ZONE, null);
+        this.timeZone = zone != null ? TimeZone.getTimeZone(zone) : TimeZone.getDefault();
+        this.calendar = Calendar.getInstance(timeZone);
+
+        List<String> headerList = new ArrayList<>();
+        StringBuilder time = new StringBuilder();
+        compile(headerList, time);
+        this.headers = headerList.toArray(new String[headerList.size()]);
+        this.timeFields = time.toString().toCharArray();
+        this.period = getPeriod(timeFields);
+
+        int cacheSize = context.getInteger(PARAM_CACHE_SIZE, DEFAULT_CACHE_SIZE);
+        this.cache = new LinkedHashMap<Key, String>(1024, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, String> eldest) {
+                return size() > cacheSize;
+            }
+        };
+        this.times = new LinkedHashMap<Long, TimeValues>(TIME_CACHE_SIZE * 2, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, TimeValues> eldest) {
+                return size() > TIME_CACHE_SIZE;
+            }
+        };
+
+        LOG.info("Path template: '{}' (headers: {}, time fields: {})",
+                template, Arrays.toString(headers), new String(timeFields));
+    }
+
+//----------------------------------------//
+    /**
+     * Создает шаблон имени файла на основе конфигурации Flume.
+     *
+     * @return шаблон или null, если шаблон не задан (имя файла берется из заголовка)
+     */
+    public static PathTemplate createTemplate(Context context) {
+        String template = context.getString(PARAM_TEMPLATE, null);
+        if (template == null || template.isEmpty()) {
+            return null;
+        }
+        return new PathTemplate(context);
+    }
+
+//----------------------------------------//
+    // Разбор шаблона на части. Значения заголовков и полей времени в готовом имени идут в порядке следования в шаблоне,
+    // поэтому в 'parts' вместо них хранятся их индексы.
+    private void compile(List<String> headerList, StringBuilder time) {
+        StringBuilder literal = new StringBuilder();
+        int i = 0;
+        while (i < template.length()) {
+            char c = template.charAt(i);
+            if (c != '%' || i == template.length() - 1) {
+                literal.append(c);
+                i++;
+                continue;
+            }
+            char next = template.charAt(i + 1);
+            if (next == '%') {
+                literal.append('%');
+                i += 2;
+                continue;
+            }
+            if (literal.length() > 0) {
+                parts.add(literal.toString());
+                literal.setLength(0);
+            }
+            if (next == '{') {
+                int end = template.indexOf('}', i);
+                if (end < 0) {
+                    throw new IllegalArgumentException("Unclosed header in path template: " + template);
+                }
+                parts.add(new HeaderPart(headerList.size()));
+                headerList.add(template.substring(i + 2, end));
+                i = end + 1;
+            } else if ("YymdHMS".indexOf(next) >= 0) {
+                parts.add(new TimePart(time.length()));
+                time.append(next);
+                i += 2;
+            } else {
+                throw new IllegalArgumentException("Unknown field '%" + next + "' in path template: " + template);
+            }
+        }
+        if (literal.length() > 0) {
+            parts.add(literal.toString());
+        }
+    }
+
+//----------------------------------------//
+    /**
+     * Вычисляет имя файла для события.
+     *
+     * @return имя файла или null, если у события нет какого-либо из заголовков шаблона
+     */
+    public String resolve(Event event) {
+        Map<String, String> eventHeaders = event.getHeaders();
+        String[] values = new String[headers.length];
+        for (int i = 0; i < headers.length; i++) {
+            values[i] = eventHeaders.get(headers[i]);
+            if (values[i] == null) {
+                return null;
+            }
+        }
+        TimeValues time = timeFields.length > 0 ? getTime(eventHeaders) : null;
+
+        Key key = new Key(time, values);
+        String result = cache.get(key);
+        if (result == null) {
+            result = build(time, values);
+            cache.put(key, result);
+        }
+        return result;
+    }
+
+//----------------------------------------//
+    private String build(TimeValues time, String[] values) {
+        StringBuilder result = new StringBuilder(template.length() + 32);
+        for (Object part : parts) {
+            if (part instanceof HeaderPart) {
+                result.append(values[((HeaderPart) part).index]);
+            } else if (part instanceof TimePart) {
+                result.append(time.values[((TimePart) part).index]);
+            } else {
+                result.append((String) part);
+            }
+        }
+        return result.toString();
+    }
+
+//----------------------------------------//
+    // Время события - из заголовка, либо (если заголовка нет или так настроено) текущее локальное время. Поля времени
+    // вычисляются один раз для каждого периода: номер периода считается по местному времени, так что все события
+    // одного периода (независимо от порядка их прихода) получают один и тот же экземпляр значений.
+    private TimeValues getTime(Map<String, String> eventHeaders) {
+        long timestamp = useLocalTime ? System.currentTimeMillis() : parseTimestamp(eventHeaders.get(timestampHeader));
+        Long bucket = Math.floorDiv(timestamp + timeZone.getOffset(timestamp), period);
+        TimeValues time = times.get(bucket);
+        if (time == null) {
+            calendar.setTimeInMillis(timestamp);
+            String[] values = new String[timeFields.length];
+            for (int i = 0; i < timeFields.length; i++) {
+                values[i] = format(timeFields[i]);
+            }
+            time = new TimeValues(values);
+            times.put(bucket, time);
+        }
+        return time;
+    }
+
+    private static long getPeriod(char[] fields) {
+        long result = DAY;
+        for (char field : fields) {
+            if (field == 'S') {
+                result = Math.min(result, SECOND);
+            } else if (field == 'M') {
+                result = Math.min(result, MINUTE);
+            } else if (field == 'H') {
+                result = Math.min(result, HOUR);
+            }
+        }
+        return result;
+    }
+
+    private static long parseTimestamp(String value) {
+        if (value != null) {
+            try {
+                return Long.parseLong(value);
+            } catch (NumberFormatException ex) {
+                // используем локальное время
+            }
+        }
+        return System.currentTimeMillis();
+    }
+
+    private String format(char field) {
+        switch (field) {
+            case 'Y':
+                return String.valueOf(calendar.get(Calendar.YEAR));
+            case 'y':
+                return pad(calendar.get(Calendar.YEAR) % 100);
+            case 'm':
+                return pad(calendar.get(Calendar.MONTH) + 1);
+            case 'd':
+                return pad(calendar.get(Calendar.DAY_OF_MONTH));
+            case 'H':
+                return pad(calendar.get(Calendar.HOUR_OF_DAY));
+            case 'M':
+                return pad(calendar.get(Calendar.MINUTE));
+            default:
+                return pad(calendar.get(Calendar.SECOND));
+        }
+    }
+
+    private static String pad(int value) {
+        return value < 10 ? "0" + value : String.valueOf(value);
+    }
+
+//----------------------------------------//
+    @Override
+    public String toString() {
+        return template;
+    }
+
+//****************************************//
+
+    private static class HeaderPart {
+
+        private final int index;
+
+        HeaderPart(int index) {
+            this.index = index;
+        }
+    }
+
+//****************************************//
+
+    private static class TimePart {
+
+        private final int index;
+
+        TimePart(int index) {
+            this.index = index;
+        }
+    }
+
+//****************************************//
+
+    // Значения полей времени для одного периода. Сравниваются по значениям, т.к. разные периоды (например, дни одного
+    // месяца для шаблона с точностью до месяца) могут давать одинаковые значения.
+    private static class TimeValues {
+
+        private final String[] values;
+        private final int hash;
+
+        TimeValues(String[] values) {
+            this.values = values;
+            this.hash = Arrays.hashCode(values);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            return obj instanceof TimeValues && Arrays.equals(values, ((TimeValues) obj).values);
+        }
+    }
+
+//****************************************//
+
+    // Ключ кеша имен - сочетание значений заголовков и полей времени
+    private static class Key {
+
+        private final TimeValues time;
+        private final String[] values;
+        private final int hash;
+
+        Key(TimeValues time, String[] values) {
+            this.time = time;
+            this.values = values;
+            this.hash = 31 * (time != null ? time.hash : 0) + Arrays.hashCode(values);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) obj;
+            return (time == other.time || (time != null && time.equals(other.time)))
+                    && Arrays.equals(values, other.values);
+        }
+    }
+}
@@ -0,0 +1,155 @@
+package ru.flume.sink.serializer;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.flume.Event;
+import org.apache.flume.event.EventBuilder;
+
+/**
+ * Потоковое чтение файлов, записанных {@link BinarySerializer}. Сжатые файлы нужно читать через соответствующий поток
+ * распаковки (например, GZIPInputStream). Поток желательно буферизовать. Непотокобезопасный.
+ * <pre>
+ * try (BinaryEventReader reader = new BinaryEventReader(new GZIPInputStream(new FileInputStream(file)))) {
+ *     for (Event event = reader.next(); event != null; event = reader.next()) {
+ *         ...
+ *     }
+ * }
+ * </pre>
+ */
+public class BinaryEventReader implements Closeable {
+
+    // наибольший размер массива, который можно выделить в большинстве JVM
+    private static final int MAX_LENGTH = Integer.MAX_VALUE - 8;
+
+    private final InputStream in;
+
+    public BinaryEventReader(InputStream in) {
+        this.in = in;
+    }
+
+//----------------------------------------//
+    /**
+     * Читает следующее событие.
+     *
+     * @return событие или null, если достигнут конец потока
+     * @throws IOException  если поток не удалось прочитать или он оборван посреди события
+     */
+    public Event next() throws IOException {
+        int headersLength = readVarint(true);
+        if (headersLength < 0) {
+            return null;
+        }
+        Map<String, String> headers = new HashMap<>();
+        if (headersLength > 0) {
+            byte[] data = readFully(headersLength);
+            int[] pos = {0};
+            while (pos[0] < data.length) {
+                String key = readString(data, pos);
+                String value = readString(data, pos);
+                headers.put(key, value);
+            }
+        }
+        byte[] body = readFully(readVarint(false));
+        return EventBuilder.withBody(body, headers);
+    }
+
+//----------------------------------------//
+    /**
+     * Пропускает следующее событие, не читая его содержимое в память.
+     *
+     * @return false, если достигнут конец потока
+     */
+    public boolean skip() throws IOException {
+        int headersLength = readVarint(true);
+        if (headersLength < 0) {
+            return false;
+        }
+        skipFully(headersLength);
+        skipFully(readVarint(false));
+        return true;
+    }
+
+//----------------------------------------//
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+
+//----------------------------------------//
+    // Возвращает -1, если поток закончился до начала числа (и это допустимо). Длина не может быть отрицательной или
+    // больше MAX_LENGTH - иначе -1 было бы принято за конец потока, а поврежденный файл - за корректный.
+    private int readVarint(boolean eofAllowed) throws IOException {
+        long result = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            int b = in.read();
+            if (b < 0) {
+                if (shift == 0 && eofAllowed) {
+                    return -1;
+                }
+                throw new EOFException("Unexpected end of stream");
+            }
+            result |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                if (result > MAX_LENGTH) {
+                    break;
+                }
+                return (int) result;
+            }
+        }
+        throw new IOException("Malformed length prefix");
+    }
+
+    private byte[] readFully(int length) throws IOException {
+        byte[] result = new byte[length];
+        int pos = 0;
+        while (pos < length) {
+            int read = in.read(result, pos, length - pos);
+            if (read < 0) {
+                throw new EOFException("Unexpected end of stream");
+            }
+            pos += read;
+        }
+        return result;
+    }
+
+    private void skipFully(int length) throws IOException {
+        long remaining = length;
+        while (remaining > 0) {
+            long skipped = in.skip(remaining);
+            if (skipped <= 0) {
+                // skip() может вернуть 0 и не на конце потока - проверяем чтением
+                if (in.read() < 0) {
+                    throw new EOFException("Unexpected end of stream");
+                }
+                skipped = 1;
+            }
+            remaining -= skipped;
+        }
+    }
+
+    private static String readString(byte[] data, int[] pos) throws IOException {
+        int length = 0;
+        for (int shift = 0; ; shift += 7) {
+            if (pos[0] >= data.length || shift >= 35) {
+                throw new IOException("Malformed headers");
+            }
+            byte b = data[pos[0]++];
+            length |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                break;
+            }
+        }
+        if (length < 0 || length > data.length - pos[0]) {
+            throw new IOException("Malformed headers");
+        }
+        String result = new String(data, pos[0], length, StandardCharsets.UTF_8);
+        pos[0] += length;
+        return result;
+    }
+}
@@ -0,0 +1,101 @@
+package ru.flume.sink.serializer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+import org.apache.flume.Context;
+import org.apache.flume.Event;
+
+/**
+ * Компактный двоичный формат с префиксом длины. Не зависит от содержимого тел событий (тела могут содержать любые
+ * байты, в т.ч. переносы строк) и позволяет читателю переходить от события к событию, не просматривая каждый байт.
+ * <p>
+ * Каждое событие записывается как:
+ * <pre>
+ * varint(длина заголовков) заголовки varint(длина тела) тело
+ * </pre>
+ * где заголовки - последовательность пар <code>varint(длина) ключ varint(длина) значение</code> в UTF-8. Если
+ * заголовки не сохраняются, длина заголовков равна 0. varint - беззнаковое целое по 7 бит в байте (младшие вперед).
+ * Прочитать такой файл можно с помощью {@link BinaryEventReader}.
+ */
+public class BinarySerializer extends EventSerializer {
+
+    private static final String PARAM_HEADERS = "sink.serializer.binary.headers";
+
+    private final boolean writeHeaders;
+
+    public BinarySerializer(Context context) {
+        super(context);
+        this.writeHeaders = context.getBoolean(PARAM_HEADERS, false);
+    }
+
+    /**
+     * @param writeHeaders  сохранять ли заголовки (независимо от конфигурации)
+     */
+    public BinarySerializer(Context context, boolean writeHeaders) {
+        super(context);
+        this.writeHeaders = writeHeaders;
+    }
+
+    /**
+     * Событие с пустым телом записывается, если у него есть сохраняемые заголовки.
+     */
+    @Override
+    public boolean accepts(Event event) {
+        return event.getBody().length > 0 || (writeHeaders && !event.getHeaders().isEmpty());
+    }
+
+    /**
+     * Собирает событие целиком в один буфер и записывает его одним вызовом.
+     */
+    @Override
+    public void write(Event event, OutputStream out) throws IOException {
+        byte[][] headers = writeHeaders ? encodeHeaders(event.getHeaders()) : new byte[0][];
+        int headersLength = 0;
+        for (byte[] value : headers) {
+            headersLength += varintSize(value.length) + value.length;
+        }
+        byte[] body = event.getBody();
+
+        byte[] buffer = new byte[varintSize(headersLength) + headersLength + varintSize(body.length) + body.length];
+        int pos = putVarint(buffer, 0, headersLength);
+        for (byte[] value : headers) {
+            pos = putVarint(buffer, pos, value.length);
+            System.arraycopy(value, 0, buffer, pos, value.length);
+            pos += value.length;
+        }
+        pos = putVarint(buffer, pos, body.length);
+        System.arraycopy(body, 0, buffer, pos, body.length);
+        out.write(buffer);
+    }
+
+    // ключи и значения заголовков подряд
+    private static byte[][] encodeHeaders(Map<String, String> headers) {
+        byte[][] result = new byte[headers.size() * 2][];
+        int i = 0;
+        for (Map.Entry<String, String> e : headers.entrySet()) {
+            result[i++] = e.getKey().getBytes(StandardCharsets.UTF_8);
+            result[i++] = e.getValue() != null ? e.getValue().getBytes(StandardCharsets.UTF_8) : new byte[0];
+        }
+        return result;
+    }
+
+    private static int varintSize(int value) {
+        int size = 1;
+        while ((value >>>= 7) != 0) {
+            size++;
+        }
+        return size;
+    }
+
+    private static int putVarint(byte[] buffer, int pos, int value) {
+        while ((value & ~0x7F) != 0) {
+            buffer[pos++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        buffer[pos++] = (byte) value;
+        return pos;
+    }
+}
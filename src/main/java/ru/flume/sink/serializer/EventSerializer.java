@@ -0,0 +1,96 @@
+package ru.flume.sink.serializer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.flume.Context;
+import org.apache.flume.Event;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import ru.flume.sink.util.Plugins;
+
+/**
+ * Класс, определяющий формат записи событий в файл (разметку событий). Сериализатор не хранит состояния отдельного
+ * файла, поэтому один экземпляр используется для всех файлов.
+ */
+public abstract class EventSerializer {
+
+    private static final Logger LOG = LoggerFactory.getLogger(EventSerializer.class);
+
+    public static final Map<String, Class<? extends EventSerializer>> ALIASES
+            = new HashMap<String, Class<? extends EventSerializer>>() {{
+        put("text", TextSerializer.class);
+        put("binary", BinarySerializer.class);
+    }};
+
+    private static final String PARAM_SERIALIZER = "sink.serializer";
+
+//----------------------------------------//
+    /**
+     * Создает сериализатор на основе файла конфигурации Flume. В зависимости от формата, требуемый набор параметров в
+     * конфигурации может разниться.
+     */
+    public EventSerializer(Context context) {
+    }
+
+//----------------------------------------//
+    /**
+     * Записывает событие в поток.
+     *
+     * @param event событие
+     * @param out   поток на запись
+     */
+    public abstract void write(Event event, OutputStream out) throws IOException;
+
+//----------------------------------------//
+    /**
+     * @return нужно ли записывать событие. По умолчанию события с пустым телом пропускаются.
+     */
+    public boolean accepts(Event event) {
+        return event.getBody().length > 0;
+    }
+
+//----------------------------------------//
+    /**
+     * @return нужно ли записывать разделитель между событиями (см. {@link #writeSeparator(OutputStream)})
+     */
+    public boolean hasSeparator() {
+        return false;
+    }
+
+//----------------------------------------//
+    /**
+     * Записывает разделитель между двумя событиями (перед первым событием файла не вызывается).
+     */
+    public void writeSeparator(OutputStream out) throws IOException {
+    }
+
+//----------------------------------------//
+    /**
+     * @return можно ли склеивать файлы, записанные этим и другим сериализатором, в один файл. По умолчанию - если это
+     * сериализаторы одного класса.
+     */
+    public boolean isCompatible(EventSerializer other) {
+        return other != null && other.getClass() == getClass();
+    }
+
+//----------------------------------------//
+    /**
+     * Создает конкретную реализацию сериализатора на основе конфигурации Flume.
+     */
+    public static EventSerializer createSerializer(Context context) {
+        String serializer = context.getString(PARAM_SERIALIZER, null);
+        if (serializer == null) {
+            return new TextSerializer(context);
+        }
+        EventSerializer result = Plugins.create(serializer, ALIASES, EventSerializer.class, context);
+        if (result == null) {
+            LOG.error("Data will be written as text");
+            return new TextSerializer(context);
+        }
+        return result;
+    }
+}
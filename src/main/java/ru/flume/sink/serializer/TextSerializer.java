@@ -0,0 +1,50 @@
+package ru.flume.sink.serializer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+import org.apache.flume.Context;
+import org.apache.flume.Event;
+
+/**
+ * Сериализатор, записывающий тела событий "как есть", разделяя их заданной последовательностью байт (по умолчанию -
+ * переносом строки). Заголовки событий не сохраняются.
+ */
+public class TextSerializer extends EventSerializer {
+
+    private static final String PARAM_SEPARATOR = "sink.eventSeparator";
+    private static final String DEFAULT_SEPARATOR = "\n";
+
+    private final byte[] separator;
+
+    public TextSerializer(Context context) {
+        super(context);
+        // если делителя между событиями нет, то данные будут писаться в файл "как есть" - все байты подряд
+        String value = context.getString(PARAM_SEPARATOR, DEFAULT_SEPARATOR);
+        this.separator = value != null && !value.isEmpty() ? value.getBytes() : null;
+    }
+
+    @Override
+    public void write(Event event, OutputStream out) throws IOException {
+        out.write(event.getBody());
+    }
+
+    @Override
+    public boolean hasSeparator() {
+        return separator != null;
+    }
+
+    @Override
+    public void writeSeparator(OutputStream out) throws IOException {
+        out.write(separator);
+    }
+
+    /**
+     * Совместим с текстовым сериализатором с тем же разделителем.
+     */
+    @Override
+    public boolean isCompatible(EventSerializer other) {
+        return super.isCompatible(other) && Arrays.equals(separator, ((TextSerializer) other).separator);
+    }
+}
@@ -0,0 +1,58 @@
+package ru.flume.sink.util;
+
+import java.lang.reflect.InvocationTargetException;
+import java.util.Map;
+
+import org.apache.flume.Context;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Создание подключаемых реализаций (сжатие, формат записи и т.п.) по короткому имени или полному имени класса из
+ * конфигурации Flume. Реализация должна иметь публичный конструктор с единственным аргументом {@link Context}.
+ */
+public final class Plugins {
+
+    private static final Logger LOG = LoggerFactory.getLogger(Plugins.class);
+
+    private Plugins() {
+    }
+
+//----------------------------------------//
+    /**
+     * Создает реализацию по имени. Причина неудачи пишется в лог, выбор реализации по умолчанию остается за вызывающим.
+     *
+     * @param name      короткое имя (см. aliases) или полное имя класса
+     * @param aliases   короткие имена встроенных реализаций
+     * @param type      базовый класс реализаций
+     * @param context   конфигурация, передаваемая в конструктор
+     * @return созданная реализация или null, если ее не удалось создать
+     */
+    public static <T> T create(String name, Map<String, Class<? extends T>> aliases, Class<T> type,
+            Context context) {
+        Class<?> clazz = aliases.get(name);
+        if (clazz == null) {
+            try {
+                clazz = Class.forName(name);
+            } catch (ClassNotFoundException ex) {
+                LOG.error("{} class '{}' not found", type.getSimpleName(), name);
+                return null;
+            }
+        }
+        if (!type.isAssignableFrom(clazz)) {
+            LOG.error("Class '{}' is not an instance of '{}'", clazz.getName(), type.getName());
+            return null;
+        }
+        try {
+            return type.cast(clazz.getConstructor(Context.class).newInstance(context));
+        } catch (NoSuchMethodException | IllegalAccessException | IllegalArgumentException | InstantiationException
+                | SecurityException ex) {
+            LOG.error("Class '{}' should have public constructor with single argument of '{}'",
+                    clazz.getName(), Context.class.getName());
+        } catch (InvocationTargetException ex) {
+            LOG.error("Unexpected exception in constructor of class '" + clazz.getName() + "'", ex.getCause());
+        }
+        LOG.error("Unable to instantiate {} '{}'", type.getSimpleName(), clazz.getName());
+        return null;
+    }
+}
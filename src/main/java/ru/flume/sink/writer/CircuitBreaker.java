@@ -0,0 +1,57 @@
+package ru.flume.sink.writer;
+
+/**
+ * Предохранитель для отдельного файла: после ошибки записи файл на некоторое время считается недоступным, и события для
+ * него направляются в карантин. Время до следующей попытки растет экспоненциально с каждой ошибкой подряд.
+ * Непотокобезопасный, доступ регулируется FileManager'ом.
+ */
+class CircuitBreaker {
+
+    private final long initialDelay;
+    private final long maxDelay;
+
+    private int failures;
+    private long retryTime;
+
+//----------------------------------------//
+    /**
+     * @param initialDelay  время до повторной попытки после первой ошибки (мс)
+     * @param maxDelay      максимальное время до повторной попытки (мс)
+     */
+    CircuitBreaker(long initialDelay, long maxDelay) {
+        this.initialDelay = initialDelay;
+        this.maxDelay = maxDelay;
+    }
+
+//----------------------------------------//
+    /**
+     * Регистрирует очередную ошибку и откладывает следующую попытку.
+     *
+     * @return через сколько мс разрешена следующая попытка
+     */
+    long fail(long now) {
+        failures++;
+        long delay = initialDelay << Math.min(failures - 1, 30);
+        if (delay <= 0 || delay > maxDelay) {
+            delay = maxDelay;
+        }
+        retryTime = now + delay;
+        return delay;
+    }
+
+//----------------------------------------//
+    /**
+     * @return true, если время для повторной попытки еще не наступило
+     */
+    boolean isOpen(long now) {
+        return now < retryTime;
+    }
+
+//----------------------------------------//
+    /**
+     * @return время (мс), с которого разрешена следующая попытка
+     */
+    long getRetryTime() {
+        return retryTime;
+    }
+}
@@ -0,0 +1,420 @@
+package ru.flume.sink.writer;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.flume.Context;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import ru.flume.sink.compressor.Compressor;
+import ru.flume.sink.manifest.ManifestWriter;
+import ru.flume.sink.serializer.EventSerializer;
+
+/**
+ * Фоновое объединение небольших закрытых файлов. Файлы с редко приходящими событиями закрываются по бездействию и
+ * открываются снова, оставляя множество мелких файлов с одним именем ("name.log", "name (1).log", ...). Компактор
+ * склеивает такие файлы в более крупные: данные просто дописываются друг за другом, сжатые GZIP-файлы не
+ * перепаковываются (несколько членов GZIP подряд - корректный GZIP-файл).
+ * <p>
+ * Чтобы получатели не успели забрать файлы, которые затем будут объединены (и получить те же события второй раз),
+ * небольшие файлы при закрытии не публикуются, а ждут объединения под неитоговым именем
+ * (см. {@link OutputFile#getPending()}). Группа таких файлов обрабатывается, когда файлы с этим именем не закрывались в
+ * течение заданного времени: файлы совместимого формата (см. {@link EventSerializer#isCompatible(EventSerializer)} -
+ * формат мог смениться при переконфигурировании) склеиваются в порядке закрытия во временный файл, который один раз
+ * публикуется под итоговым именем, после чего исходные файлы удаляются. Одиночные файлы публикуются как есть. Если для
+ * файлов пишется манифест, объединенный файл получает собственный манифест (количество событий и время берутся из
+ * манифестов исходных файлов). Файлы с индексом не объединяются (смещения в индексе относятся к исходному файлу).
+ * <p>
+ * При остановке компактора ожидающие файлы публикуются без объединения. Компактор не должен мешать записи: скорость
+ * чтения ограничена, поток имеет низкий приоритет, а файлы на нагруженном томе (см. {@link DiskMonitor}) публикуются
+ * без объединения.
+ */
+public class Compactor {
+
+    private static final Logger LOG = LoggerFactory.getLogger(Compactor.class);
+
+    private static final String PARAM_ENABLED = "sink.compaction";
+
+    private static final String PARAM_MAX_FILE_SIZE = "sink.compaction.maxFileSize";
+    private static final long DEFAULT_MAX_FILE_SIZE = 64L * 1024 * 1024;
+
+    private static final String PARAM_TARGET_SIZE = "sink.compaction.targetSize";
+    private static final long DEFAULT_TARGET_SIZE = 256L * 1024 * 1024;
+
+    private static final String PARAM_DELAY = "sink.compaction.delay";
+    private static final long DEFAULT_DELAY = 10 * 60 * 1000;
+
+    private static final String PARAM_RATE = "sink.compaction.rate";
+    private static final long DEFAULT_RATE = 10L * 1024 * 1024;
+
+    private static final String TEMP_EXTENSION = ".compact.tmp";
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final long maxFileSize;
+    private final long targetSize;
+    private final long delay;
+    private final long rate;
+
+    // группы файлов, ожидающие объединения, по итоговому имени файла без индекса
+    private final Map<String, Group> groups = new ConcurrentHashMap<>();
+    private ScheduledExecutorService executor;
+    // после остановки файлы больше не задерживаются (меняется и проверяется под блокировкой компактора)
+    private boolean running;
+
+//----------------------------------------//
+    /**
+     * @throws IllegalArgumentException если параметры заданы некорректно
+     */
+    public Compactor(Context context) {
+        this.maxFileSize = context.getLong(PARAM_MAX_FILE_SIZE, DEFAULT_MAX_FILE_SIZE);
+        this.targetSize = context.getLong(PARAM_TARGET_SIZE, DEFAULT_TARGET_SIZE);
+        this.delay = context.getLong(PARAM_DELAY, DEFAULT_DELAY);
+        this.rate = context.getLong(PARAM_RATE, DEFAULT_RATE);
+        if (maxFileSize <= 0 || targetSize < maxFileSize) {
+            throw new IllegalArgumentException("Compaction target size should not be less than max file size");
+        }
+        if (delay <= 0 || rate <= 0) {
+            throw new IllegalArgumentException("Compaction delay and rate should be greater than 0");
+        }
+    }
+
+//----------------------------------------//
+    /**
+     * Запускает фоновый поток компактора.
+     */
+    synchronized void start() {
+        executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "file-sink-compactor");
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        });
+        long period = Math.max(1000, delay / 4);
+        executor.scheduleWithFixedDelay(this::compact, period, period, TimeUnit.MILLISECONDS);
+        running = true;
+        LOG.info("Compaction enabled: files under {} bytes into files up to {} bytes, {} ms after close, {} bytes/s",
+                maxFileSize, targetSize, delay, rate);
+    }
+
+//----------------------------------------//
+    /**
+     * @return совпадают ли параметры компакторов (тогда при переконфигурировании достаточно оставить прежний)
+     */
+    boolean hasSameSettings(Compactor other) {
+        return maxFileSize == other.maxFileSize && targetSize == other.targetSize && delay == other.delay
+                && rate == other.rate;
+    }
+
+//----------------------------------------//
+    /**
+     * Создает компактор на основе конфигурации Flume.
+     *
+     * @return компактор или null, если объединение файлов не включено
+     */
+    public static Compactor createCompactor(Context context) {
+        if (!context.getBoolean(PARAM_ENABLED, false)) {
+            return null;
+        }
+        return new Compactor(context);
+    }
+
+//----------------------------------------//
+    /**
+     * Принимает закрытый файл на объединение: переименовывает его в {@link OutputFile#getPending()}, и файл будет
+     * опубликован компактором. Если формат не позволяет склеивать файлы или файл достаточно большой, файл не
+     * принимается и публикуется писателем как обычно.
+     *
+     * @return принят ли файл
+     */
+    boolean hold(OutputWriter writer) {
+        Compressor compressor = writer.getCompressor();
+        if (!compressor.isConcatenable() || writer.getSize() >= maxFileSize) {
+            return false;
+        }
+        OutputFile file = writer.getFile();
+        File pending = file.getPending();
+        if (!file.getTemp().renameTo(pending)) {
+            return false;
+        }
+        String extension = compressor.getExtension();
+        String key = new File(file.getParent(), file.getName() + extension).getPath();
+        ClosedFile closed = new ClosedFile(pending, writer.getSerializer(), writer.getManifestWriter());
+        Group group = new Group(file, extension, compressor, Collections.singletonList(closed));
+        synchronized (this) {
+            if (running) {
+                groups.merge(key, group, (current, added) -> current.add(closed));
+                return true;
+            }
+        }
+        // компактор уже остановлен (например, при переконфигурировании) - публикуем сразу
+        publish(group);
+        return true;
+    }
+
+//----------------------------------------//
+    /**
+     * Останавливает компактор, дожидаясь завершения текущего объединения. Ожидающие объединения файлы публикуются как
+     * есть.
+     */
+    synchronized void shutdown() {
+        if (executor == null) {
+            return;
+        }
+        running = false;
+        executor.shutdown();
+        try {
+            executor.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        for (String key : groups.keySet()) {
+            Group group = groups.remove(key);
+            if (group != null) {
+                publish(group);
+            }
+        }
+    }
+
+//----------------------------------------//
+    private void compact() {
+        long now = System.currentTimeMillis();
+        for (Map.Entry<String, Group> e : groups.entrySet()) {
+            if (executor.isShutdown()) {
+                return;
+            }
+            Group group = e.getValue();
+            if (now - group.closeTime < delay) {
+                continue;
+            }
+            // если файл только что снова закрыли, группа останется до следующей проверки
+            if (!groups.remove(e.getKey(), group)) {
+                continue;
+            }
+            try {
+                if (group.file.getVolume().getPressure() > 0) {
+                    // объединение требует места под копию данных и сброса на диск, а том и так нагружен (см.
+                    // DiskMonitor) - файлы публикуются как есть
+                    LOG.info("Volume {} is under pressure, files {} are published without compaction",
+                            group.file.getVolume(), e.getKey());
+                    publish(group);
+                } else {
+                    compact(group);
+                }
+            } catch (RuntimeException ex) {
+                LOG.error("Unable to compact files " + e.getKey(), ex);
+            }
+        }
+    }
+
+//----------------------------------------//
+    private void compact(Group group) {
+        // файлы разбиваются на наборы совместимого формата, каждый набор объединяется отдельно
+        List<List<ClosedFile>> sets = new ArrayList<>();
+        for (ClosedFile closed : group.files) {
+            List<ClosedFile> set = null;
+            for (List<ClosedFile> candidate : sets) {
+                if (candidate.get(0).isCompatible(closed)) {
+                    set = candidate;
+                    break;
+                }
+            }
+            if (set == null) {
+                set = new ArrayList<>();
+                sets.add(set);
+            }
+            set.add(closed);
+        }
+        for (List<ClosedFile> set : sets) {
+            compact(group, set);
+        }
+    }
+
+    // файлы набора идут в порядке закрытия
+    private void compact(Group group, List<ClosedFile> files) {
+        List<ClosedFile> batch = new ArrayList<>();
+        long size = 0;
+        for (ClosedFile file : files) {
+            long length = file.pending.length();
+            if (!batch.isEmpty() && size + length > targetSize) {
+                merge(group, batch);
+                batch.clear();
+                size = 0;
+            }
+            batch.add(file);
+            size += length;
+        }
+        merge(group, batch);
+    }
+
+//----------------------------------------//
+    // Склеивает файлы во временный файл, публикует его под итоговым именем и удаляет исходные файлы. Время изменения
+    // результата - как у последнего из склеенных файлов. Если объединить файлы не удалось, они публикуются как есть.
+    private void merge(Group group, List<ClosedFile> batch) {
+        if (batch.size() == 1) {
+            publish(group, batch.get(0));
+            return;
+        }
+        try {
+            merge(group, batch, new File(group.file.getParent(), group.file.getName() + "."
+                    + System.currentTimeMillis() + TEMP_EXTENSION));
+        } catch (IOException | RuntimeException ex) {
+            LOG.error("Unable to compact files " + group.file.getName() + ", publishing them as is", ex);
+            for (ClosedFile closed : batch) {
+                publish(group, closed);
+            }
+        }
+    }
+
+    private void merge(Group group, List<ClosedFile> batch, File temp) throws IOException {
+        EventSerializer serializer = batch.get(0).serializer;
+        ManifestWriter manifestWriter = null;
+        if (batch.get(0).manifestWriter != null) {
+            manifestWriter = batch.get(0).manifestWriter.getManifest().open();
+            for (ClosedFile closed : batch) {
+                manifestWriter.add(closed.manifestWriter);
+            }
+        }
+        long lastModified = batch.get(batch.size() - 1).pending.lastModified();
+        long copied = 0;
+        long start = System.nanoTime();
+        byte[] buffer = new byte[BUFFER_SIZE];
+        try (FileOutputStream file = new FileOutputStream(temp)) {
+            // закрытие сжатого потока разделителя не закрывает сам файл (см. PositionOutputStream)
+            OutputStream out = new PositionOutputStream(manifestWriter != null ? manifestWriter.wrap(file) : file);
+            for (int i = 0; i < batch.size(); i++) {
+                if (i > 0 && serializer.hasSeparator()) {
+                    // разделитель между событиями соседних файлов пишется отдельным сжатым потоком (членом GZIP)
+                    OutputStream separator = group.compressor.wrap(out);
+                    serializer.writeSeparator(separator);
+                    separator.close();
+                }
+                try (InputStream in = new FileInputStream(batch.get(i).pending)) {
+                    for (int read = in.read(buffer); read >= 0; read = in.read(buffer)) {
+                        out.write(buffer, 0, read);
+                        copied += read;
+                        throttle(copied, start);
+                    }
+                }
+            }
+            out.flush();
+            file.getFD().sync();
+        } catch (IOException | RuntimeException ex) {
+            temp.delete();
+            throw ex;
+        }
+        temp.setLastModified(lastModified);
+        File output = publish(group, temp, manifestWriter);
+        for (ClosedFile closed : batch) {
+            if (!closed.pending.delete()) {
+                LOG.warn("Unable to delete compacted file {}", closed.pending);
+            }
+        }
+        LOG.info("{} files compacted into {} ({} bytes)", batch.size(), output, copied);
+    }
+
+//----------------------------------------//
+    // Публикует ожидающие файлы группы по одному
+    private static void publish(Group group) {
+        for (ClosedFile closed : group.files) {
+            publish(group, closed);
+        }
+    }
+
+    private static void publish(Group group, ClosedFile closed) {
+        try {
+            publish(group, closed.pending, closed.manifestWriter);
+        } catch (IOException ex) {
+            LOG.error("Unable to publish file " + closed.pending, ex);
+        }
+    }
+
+    // Переименовывает готовый файл в первое свободное итоговое имя - под той же блокировкой, что и писатели файлов с
+    // этим именем (см. OutputFile#getPublishLock), так что ни одна из сторон не заменит файл другой. Манифест (если
+    // есть) появляется после файла.
+    private static File publish(Group group, File source, ManifestWriter manifestWriter) throws IOException {
+        File output;
+        synchronized (group.file.getPublishLock()) {
+            output = group.file.getOutput(group.extension);
+            Files.move(source.toPath(), output.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        }
+        if (manifestWriter != null) {
+            manifestWriter.commit(output);
+        }
+        return output;
+    }
+
+    // ограничение скорости: если данных прочитано больше, чем позволяет скорость за прошедшее время - ждем
+    private void throttle(long copied, long start) {
+        long expected = copied * 1000 / rate;
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        if (expected > elapsed) {
+            try {
+                Thread.sleep(expected - elapsed);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+//****************************************//
+
+    // Ожидающие файлы с одним итоговым именем. Неизменяемый - при закрытии очередного файла создается новая группа, так
+    // что поток компактора работает со снимком.
+    private static class Group {
+
+        private final OutputFile file;
+        private final String extension;
+        private final Compressor compressor;
+        private final List<ClosedFile> files;
+        private final long closeTime = System.currentTimeMillis();
+
+        Group(OutputFile file, String extension, Compressor compressor, List<ClosedFile> files) {
+            this.file = file;
+            this.extension = extension;
+            this.compressor = compressor;
+            this.files = files;
+        }
+
+        Group add(ClosedFile closed) {
+            List<ClosedFile> result = new ArrayList<>(files);
+            result.add(closed);
+            return new Group(file, extension, compressor, result);
+        }
+    }
+
+//****************************************//
+
+    private static class ClosedFile {
+
+        private final File pending;
+        private final EventSerializer serializer;
+        private final ManifestWriter manifestWriter;
+
+        ClosedFile(File pending, EventSerializer serializer, ManifestWriter manifestWriter) {
+            this.pending = pending;
+            this.serializer = serializer;
+            this.manifestWriter = manifestWriter;
+        }
+
+        // файлы с манифестом и без объединяются отдельно
+        boolean isCompatible(ClosedFile other) {
+            return serializer.isCompatible(other.serializer)
+                    && (manifestWriter == null) == (other.manifestWriter == null);
+        }
+    }
+}
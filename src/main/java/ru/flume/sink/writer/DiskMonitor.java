@@ -0,0 +1,139 @@
+package ru.flume.sink.writer;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.flume.Context;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Оценка "нагрузки" на тома: по свободному месту и по времени записи и сброса данных на диск. Результат - степень
+ * нагрузки от 0 (все в порядке) до 1 (писать на том нельзя), которая линейно растет между порогами предупреждения и
+ * критическим. Нехватка места учитывается, только если свободного места мало и в процентах, и в мегабайтах, чтобы
+ * большой том с небольшим процентом свободного места не останавливал запись.
+ * При ненулевой нагрузке FileManager раньше сбрасывает и закрывает файлы тома, а сток замедляет чтение из канала.
+ */
+public class DiskMonitor {
+
+    private static final Logger LOG = LoggerFactory.getLogger(DiskMonitor.class);
+
+    private static final String PARAM_ENABLED = "sink.disk.monitor";
+
+    private static final String PARAM_CHECK_PERIOD = "sink.disk.checkPeriod";
+    private static final long DEFAULT_CHECK_PERIOD = 5000;
+
+    private static final String PARAM_FREE_WARN = "sink.disk.freeWarnPercent";
+    private static final int DEFAULT_FREE_WARN = 5;
+
+    private static final String PARAM_FREE_CRITICAL = "sink.disk.freeCriticalPercent";
+    private static final int DEFAULT_FREE_CRITICAL = 1;
+
+    private static final String PARAM_FREE_WARN_MB = "sink.disk.freeWarnMb";
+    private static final long DEFAULT_FREE_WARN_MB = 1024;
+
+    private static final String PARAM_FREE_CRITICAL_MB = "sink.disk.freeCriticalMb";
+    private static final long DEFAULT_FREE_CRITICAL_MB = 100;
+
+    private static final String PARAM_LATENCY_WARN = "sink.disk.latencyWarn";
+    private static final long DEFAULT_LATENCY_WARN = 500;
+
+    private static final String PARAM_LATENCY_CRITICAL = "sink.disk.latencyCritical";
+    private static final long DEFAULT_LATENCY_CRITICAL = 5000;
+
+    // через сколько периодов проверки без новых замеров время записи на том перестает учитываться
+    private static final int LATENCY_EXPIRE_PERIODS = 3;
+
+    private final boolean enabled;
+    private final long checkPeriod;
+    private final int freeWarn;
+    private final int freeCritical;
+    private final long freeWarnMb;
+    private final long freeCriticalMb;
+    private final long latencyWarn;
+    private final long latencyCritical;
+
+//----------------------------------------//
+    /**
+     * @throws IllegalArgumentException если пороги заданы некорректно
+     */
+    public DiskMonitor(Context context) {
+        this.enabled = context.getBoolean(PARAM_ENABLED, false);
+        this.checkPeriod = context.getLong(PARAM_CHECK_PERIOD, DEFAULT_CHECK_PERIOD);
+        this.freeWarn = context.getInteger(PARAM_FREE_WARN, DEFAULT_FREE_WARN);
+        this.freeCritical = context.getInteger(PARAM_FREE_CRITICAL, DEFAULT_FREE_CRITICAL);
+        this.freeWarnMb = context.getLong(PARAM_FREE_WARN_MB, DEFAULT_FREE_WARN_MB);
+        this.freeCriticalMb = context.getLong(PARAM_FREE_CRITICAL_MB, DEFAULT_FREE_CRITICAL_MB);
+        this.latencyWarn = context.getLong(PARAM_LATENCY_WARN, DEFAULT_LATENCY_WARN);
+        this.latencyCritical = context.getLong(PARAM_LATENCY_CRITICAL, DEFAULT_LATENCY_CRITICAL);
+
+        if (checkPeriod <= 0) {
+            throw new IllegalArgumentException("Disk check period should be greater than 0");
+        }
+        if (freeCritical < 0 || freeWarn <= freeCritical) {
+            throw new IllegalArgumentException("Free space warning threshold should be greater than critical one");
+        }
+        if (freeCriticalMb < 0 || freeWarnMb <= freeCriticalMb) {
+            throw new IllegalArgumentException("Free space (MB) warning threshold should be greater than critical one");
+        }
+        if (latencyWarn <= 0 || latencyCritical <= latencyWarn) {
+            throw new IllegalArgumentException("Latency warning threshold should be less than critical one");
+        }
+    }
+
+//----------------------------------------//
+    /**
+     * @return включен ли контроль томов
+     */
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+//----------------------------------------//
+    /**
+     * @return как часто проверять тома (мс)
+     */
+    public long getCheckPeriod() {
+        return checkPeriod;
+    }
+
+//----------------------------------------//
+    /**
+     * Пересчитывает и сохраняет нагрузку на том.
+     *
+     * @param active    есть ли на томе открытые файлы - время записи учитывается только для них, т.к. иначе
+     *                  новых замеров не будет
+     * @return нагрузка на том от 0 до 1
+     */
+    public double check(Volume volume, boolean active) {
+        volume.expireLatency(System.currentTimeMillis() - LATENCY_EXPIRE_PERIODS * checkPeriod);
+        double pressure = 0;
+        if (enabled) {
+            long total = volume.getTotalSpace();
+            if (total > 0) {
+                long usable = volume.getUsableSpace();
+                double free = 100.0 * usable / total;
+                double freeMb = usable / (1024.0 * 1024);
+                pressure = Math.min(scale(freeWarn - free, freeWarn - freeCritical),
+                        scale(freeWarnMb - freeMb, freeWarnMb - freeCriticalMb));
+            }
+            if (active) {
+                long latency = TimeUnit.NANOSECONDS.toMillis(volume.getLatency());
+                pressure = Math.max(pressure, scale(latency - latencyWarn, latencyCritical - latencyWarn));
+            }
+        }
+        double previous = volume.getPressure();
+        volume.setPressure(pressure);
+        if (pressure > 0 && previous == 0) {
+            LOG.warn("Volume {} is under pressure ({}%), files will be flushed early and writing slowed down",
+                    volume, Math.round(pressure * 100));
+        } else if (pressure == 0 && previous > 0) {
+            LOG.info("Volume {} is back to normal", volume);
+        }
+        return pressure;
+    }
+
+    // доля превышения порога в диапазоне [0, 1]
+    private static double scale(double excess, double range) {
+        return Math.max(0, Math.min(1, excess / range));
+    }
+}
@@ -2,35 +2,57 @@ package ru.flume.sink.writer;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
 import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
 
 import org.apache.commons.lang.StringUtils;
 import org.apache.flume.Context;
+import org.apache.flume.Event;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import ru.flume.sink.compressor.Compressor;
 import ru.flume.sink.counter.FileSinkCounter;
+import ru.flume.sink.index.TimeIndex;
+import ru.flume.sink.manifest.Manifest;
+import ru.flume.sink.serializer.BinarySerializer;
+import ru.flume.sink.serializer.EventSerializer;
 
 /**
  * "Центр управления" записью в файлы. Предоставляет доступ к файлам для записи и периодически проверяет - давно ли
  * поступали данные в файлы. Если к файлу долго не было обращений, то закрывает его.
+ * <p>
+ * Файлы могут распределяться по нескольким корневым папкам (томам): каждое имя файла закрепляется за своим томом, а
+ * сброс буферов и закрытие файлов выполняются в отдельном потоке каждого тома.
+ * <p>
+ * Ошибка записи в один файл не мешает записи в остальные: файл на время исключается из записи, а его события
+ * сохраняются в файл карантина в двоичном формате вместе с заголовками (см. {@link BinarySerializer}), чтобы их можно
+ * было потом дописать куда следует.
+ * <p>
+ * Состояние томов (свободное место, время сброса на диск) периодически проверяется {@link DiskMonitor}'ом: файлы
+ * нагруженного тома сбрасываются и закрываются раньше обычного, а сток по {@link #getPressure()} замедляет чтение.
+ * <p>
+ * Менеджер потокобезопасен. Несколько стоков, читающих один канал, могут писать в одни и те же файлы через общий
+ * именованный менеджер (см. {@link #acquire(String, Context)}).
  */
 public class FileManager {    
     
     private static final Logger LOG = LoggerFactory.getLogger(FileManager.class);
 
     private static final String PARAM_DIRECTORY = "sink.dir";
-
-    private static final String PARAM_SEPARATOR = "sink.eventSeparator";
-    private static final String DEFAULT_SEPARATOR = "\n";
+    private static final String PARAM_DIRECTORY_WEIGHTED = "sink.dir.weighted";
 
     private static final String PARAM_IDLE_TIMEOUT = "sink.idleTimeout";
     private static final long DEFAULT_IDLE_TIMEOUT = 60 * 60 * 1000;
@@ -41,70 +63,276 @@ public class FileManager {
     private static final String PARAM_CHECK_PERIOD = "sink.checkPeriod";
     private static final long DEFAULT_CHECK_PERIOD = 1 * 60 * 1000;
 
-    private Map<String, OutputWriter> writers = new HashMap<>(128);
+    private static final String PARAM_QUARANTINE = "sink.quarantine";
+
+    private static final String PARAM_QUARANTINE_FILE = "sink.quarantine.file";
+    private static final String DEFAULT_QUARANTINE_FILE = "quarantine";
+
+    // собственное расширение карантина, чтобы получатели не приняли его за файл данных
+    private static final String PARAM_QUARANTINE_EXTENSION = "sink.quarantine.extension";
+    private static final String DEFAULT_QUARANTINE_EXTENSION = "bin";
+    private static final String PARAM_EXTENSION = "sink.extension";
+
+    private static final String PARAM_RETRY_DELAY = "sink.retry.delay";
+    private static final long DEFAULT_RETRY_DELAY = 1000;
+
+    private static final String PARAM_RETRY_MAX_DELAY = "sink.retry.maxDelay";
+    private static final long DEFAULT_RETRY_MAX_DELAY = 5 * 60 * 1000;
+
+    // общие менеджеры, доступные по имени в пределах JVM
+    private static final Map<String, FileManager> SHARED = new HashMap<>();
+    // префикс имени группы счетчиков общего менеджера
+    private static final String SHARED_COUNTER_PREFIX = "shared-";
+
+    // 'writers' читается без блокировки (см. getWriter), а изменяется под блокировкой менеджера
+    private Map<String, OutputWriter> writers = new ConcurrentHashMap<>(128);
+    private Map<String, CircuitBreaker> breakers = new HashMap<>();
+    private volatile OutputWriter quarantineWriter;
     private ScheduledExecutorService idleChecker = Executors.newScheduledThreadPool(1);
 
-    private final File directory;
-    private final Compressor compressor;
-    private final String eventSeparator;
-    private final long idleTimeout;
-    private final long flushTimeout;
-    
+    private final Map<String, Volume> volumes = new HashMap<>();
     private final FileSinkCounter counter;
+    private ScheduledFuture<?> checkTask;
+    private long checkPeriod;
+    private ScheduledFuture<?> diskTask;
+    private DiskMonitor diskMonitor;
+    private volatile double pressure;
+    private volatile Compactor compactor;
+
+    // Параметры, которые могут меняться при переконфигурировании. Меняются и читаются под блокировкой менеджера, кроме
+    // таймаутов и параметров карантина, которые читаются без нее.
+    private VolumeSelector volumeSelector;
+    private List<String> selectorRoots;
+    private boolean selectorWeighted;
+    private Compressor compressor;
+    private TimeIndex index;
+    private Manifest manifest;
+    private EventSerializer serializer;
+    private EventSerializer quarantineSerializer;
+    private Compressor quarantineCompressor;
+    private volatile long idleTimeout;
+    private volatile long flushTimeout;
+    private volatile String quarantineFile;
+    private volatile long retryDelay;
+    private volatile long retryMaxDelay;
+    
+    // имя общего менеджера и число использующих его стоков (меняются под блокировкой SHARED)
+    private String sharedName;
+    private int references;
     
 //----------------------------------------//
     /**
      * Создает менеджер, который будет создавать файлы в указанной папке и предоставлять средства записи для этих
      * файлов. Автоматически запускает фоновый поток для проверки неактивности отдельных файлов.
      *
-     * @param directory     корневой каталог для файлов
-     * @param idleTimeout   время неактивности, после которого следует закрывать файл
-     * @param checkPeriod   периодичность проверки неактивных файлов
+     * @param context   конфигурация стока (корневые каталоги, таймауты, сжатие)
+     * @param counter   счетчики стока
      */
     public FileManager(Context context, FileSinkCounter counter) {
         this.counter = counter;
-        
+        configure(context);
+    }
+
+//----------------------------------------//
+    /**
+     * Применяет конфигурацию. Может вызываться для уже работающего менеджера, открытые файлы при этом не закрываются:
+     * таймауты сразу действуют для всех открытых файлов, а каталоги, сжатие, формат записи, индекс и манифест - для
+     * файлов, открытых после переконфигурирования (т.е. каждый файл переходит на них при следующем открытии).
+     * <p>
+     * Если конфигурация некорректна, ни один параметр не меняется.
+     *
+     * @throws IllegalArgumentException если конфигурация некорректна
+     */
+    public void configure(Context context) {
         String rootDirectory = context.getString(PARAM_DIRECTORY, null);
         if (StringUtils.isBlank(rootDirectory)) { 
             throw new IllegalArgumentException("Directory for output files not specified");
         }
         
-        this.directory = new File(rootDirectory);
-        this.compressor = Compressor.createCompressor(context);
+        // корневых папок может быть несколько (по одной на диск), перечисляются через запятую
+        List<String> roots = new ArrayList<>();
+        for (String root : rootDirectory.split(",")) {
+            if (!StringUtils.isBlank(root)) {
+                roots.add(root.trim());
+            }
+        }
+        if (roots.isEmpty()) {
+            throw new IllegalArgumentException("Directory for output files not specified");
+        }
         
-        this.eventSeparator = context.getString(PARAM_SEPARATOR, DEFAULT_SEPARATOR);
-        this.idleTimeout =  context.getLong(PARAM_IDLE_TIMEOUT, DEFAULT_IDLE_TIMEOUT);
-        this.flushTimeout =  context.getLong(PARAM_FLUSH_TIMEOUT, DEFAULT_FLUSH_TIMEOUT);
-        long checkPeriod = context.getLong(PARAM_CHECK_PERIOD, DEFAULT_CHECK_PERIOD);        
+        long newIdleTimeout = context.getLong(PARAM_IDLE_TIMEOUT, DEFAULT_IDLE_TIMEOUT);
+        long newFlushTimeout = context.getLong(PARAM_FLUSH_TIMEOUT, DEFAULT_FLUSH_TIMEOUT);
+        long newCheckPeriod = context.getLong(PARAM_CHECK_PERIOD, DEFAULT_CHECK_PERIOD);
+        long newRetryDelay = context.getLong(PARAM_RETRY_DELAY, DEFAULT_RETRY_DELAY);
+        long newRetryMaxDelay = context.getLong(PARAM_RETRY_MAX_DELAY, DEFAULT_RETRY_MAX_DELAY);
         
-        if (idleTimeout <= 0) {
+        if (newIdleTimeout <= 0) {
             throw new IllegalArgumentException("Idle timeout should be greater than 0");
         }        
-        if (flushTimeout <= 0) {
+        if (newFlushTimeout <= 0) {
             throw new IllegalArgumentException("Flush timeout should be greater than 0");
         }        
-        if (checkPeriod <= 0) {
+        if (newCheckPeriod <= 0) {
             throw new IllegalArgumentException("Check period should be greater than 0");
         }        
+        if (newRetryDelay <= 0 || newRetryMaxDelay < newRetryDelay) {
+            throw new IllegalArgumentException("Retry delay should be greater than 0 and not greater than max delay");
+        }
         
-        LOG.info("Created FileManager with params:"
-                + "\n\tDirectory: " + directory
-                + "\n\tIdle timeout: " + idleTimeout + "ms"
-                + "\n\tFlush timeout: " + flushTimeout + "ms"
-                + "\n\tCheck period: " + checkPeriod + "ms"
-                + "\n\tCompressor: " + compressor.getClass().getSimpleName() 
-                    + " (file extension: '" + compressor.getExtension() + "')"
-        );
+        Compressor newCompressor = Compressor.createCompressor(context);
+        TimeIndex newIndex = TimeIndex.createIndex(context);
+        if (newIndex != null && !newCompressor.isConcatenable()) {
+            LOG.warn("Compressor {} does not support seeking, index will contain event ordinals only",
+                    newCompressor.getClass().getSimpleName());
+        }
+        EventSerializer newSerializer = EventSerializer.createSerializer(context);
+        Manifest newManifest = Manifest.createManifest(context);
+        DiskMonitor newDiskMonitor = new DiskMonitor(context);
+        Compactor newCompactor = Compactor.createCompactor(context);
         
-        this.idleChecker.scheduleAtFixedRate(this::checkIdle, checkPeriod, checkPeriod, TimeUnit.MILLISECONDS);  
+        // карантин можно отключить - тогда ошибка записи в любой файл, как и раньше, откатывает всю транзакцию
+        boolean quarantine = context.getBoolean(PARAM_QUARANTINE, true);
+        Compressor newQuarantineCompressor = null;
+        if (quarantine) {
+            // карантин сжимается так же, как файлы данных, но с собственным расширением
+            Context quarantineContext = new Context(context.getParameters());
+            quarantineContext.put(PARAM_EXTENSION,
+                    context.getString(PARAM_QUARANTINE_EXTENSION, DEFAULT_QUARANTINE_EXTENSION));
+            newQuarantineCompressor = Compressor.createCompressor(quarantineContext);
+        }
+        
+        boolean weighted = context.getBoolean(PARAM_DIRECTORY_WEIGHTED, false);
+        Compactor oldCompactor = null;
+        synchronized (this) {
+            // тома, которые больше не указаны в конфигурации, продолжают обслуживать уже открытые на них файлы
+            List<Volume> selected = new ArrayList<>();
+            for (String root : roots) {
+                Volume volume = volumes.get(root);
+                if (volume == null) {
+                    volume = new Volume(new File(root));
+                    volumes.put(root, volume);
+                }
+                selected.add(volume);
+            }
+            // кольцо строится заново, только если изменился состав томов: при весах по свободному месту новое кольцо
+            // могло бы перенести часть имен на другой том без всякой необходимости
+            if (volumeSelector == null || !roots.equals(selectorRoots) || weighted != selectorWeighted) {
+                this.volumeSelector = new VolumeSelector(selected, weighted);
+                this.selectorRoots = roots;
+                this.selectorWeighted = weighted;
+            }
+            this.compressor = newCompressor;
+            this.index = newIndex;
+            this.manifest = newManifest;
+            this.serializer = newSerializer;
+            this.idleTimeout = newIdleTimeout;
+            this.flushTimeout = newFlushTimeout;
+            this.retryDelay = newRetryDelay;
+            this.retryMaxDelay = newRetryMaxDelay;
+            if (quarantine) {
+                this.quarantineFile = context.getString(PARAM_QUARANTINE_FILE, DEFAULT_QUARANTINE_FILE);
+                this.quarantineSerializer = new BinarySerializer(context, true);
+                this.quarantineCompressor = newQuarantineCompressor;
+            } else {
+                this.quarantineFile = null;
+                this.quarantineSerializer = null;
+                this.quarantineCompressor = null;
+                breakers.clear();
+            }
+            
+            if (checkTask == null || checkPeriod != newCheckPeriod) {
+                if (checkTask != null) {
+                    checkTask.cancel(false);
+                }
+                checkTask = idleChecker.scheduleAtFixedRate(this::checkIdle, newCheckPeriod, newCheckPeriod,
+                        TimeUnit.MILLISECONDS);
+                checkPeriod = newCheckPeriod;
+            }
+            if (diskTask == null || diskMonitor.getCheckPeriod() != newDiskMonitor.getCheckPeriod()) {
+                if (diskTask != null) {
+                    diskTask.cancel(false);
+                }
+                diskTask = idleChecker.scheduleAtFixedRate(this::checkDisks, 0, newDiskMonitor.getCheckPeriod(),
+                        TimeUnit.MILLISECONDS);
+            }
+            this.diskMonitor = newDiskMonitor;
+            // прежний компактор с теми же параметрами сохраняется вместе с ожидающими объединения файлами
+            if (compactor == null || newCompactor == null || !compactor.hasSameSettings(newCompactor)) {
+                oldCompactor = compactor;
+                this.compactor = newCompactor;
+                if (newCompactor != null) {
+                    newCompactor.start();
+                }
+            }
+            
+            LOG.info((writers.isEmpty() ? "Created" : "Reconfigured") + " FileManager with params:"
+                    + "\n\tDirectories: " + selected
+                    + "\n\tIdle timeout: " + idleTimeout + "ms"
+                    + "\n\tFlush timeout: " + flushTimeout + "ms"
+                    + "\n\tCheck period: " + checkPeriod + "ms"
+                    + "\n\tCompressor: " + compressor.getClass().getSimpleName() 
+                        + " (file extension: '" + compressor.getExtension() + "')"
+                    + "\n\tSerializer: " + serializer.getClass().getSimpleName()
+                    + "\n\tQuarantine file: " + quarantineFile + (quarantineFile != null
+                        ? " (file extension: '" + quarantineCompressor.getExtension() + "')" : "")
+                    + "\n\tRetry delay: " + retryDelay + "-" + retryMaxDelay + "ms"
+                    + "\n\tDisk monitor: "
+                        + (diskMonitor.isEnabled() ? "every " + diskMonitor.getCheckPeriod() + "ms" : "off")
+                    + "\n\tManifest: " + (manifest != null ? "on" : "off")
+                    + "\n\tCompaction: " + (compactor != null ? "on" : "off")
+            );
+        }
+        // файлы, ожидавшие объединения старым компактором, публикуются как есть
+        if (oldCompactor != null) {
+            oldCompactor.shutdown();
+        }
     }
     
+//----------------------------------------//
+    /**
+     * Записывает событие в указанный файл. Если запись в файл невозможна (и карантин не отключен), файл на время
+     * исключается из записи, а событие записывается в карантин. Файл, запись в который завершилась ошибкой,
+     * закрывается: как обычно, если его удалось вернуть к концу последнего целого события, иначе - как сбойный (см.
+     * {@link OutputWriter#write(Event)}).
+     *
+     * @param fileName  имя файла, в который будет вестись запись
+     * @return FileWriter, в который фактически записано событие
+     * @throws IOException  если событие не удалось записать ни в файл, ни в карантин
+     */
+    public OutputWriter write(String fileName, Event event) throws IOException {
+        while (true) {
+            OutputWriter writer = getWriter(fileName);
+            try {
+                if (writer.write(event)) {
+                    // файл может быть исключен из записи - тогда getWriter() отдает карантин
+                    if (writer == quarantineWriter) {
+                        counter.incEventQuarantined();
+                    }
+                    return writer;
+                }
+                // файл успели закрыть между getWriter() и записью (например, по бездействию) - берем новый
+            } catch (IOException ex) {
+                if (writer == quarantineWriter) {
+                    discard(fileName, writer);
+                    throw ex;
+                }
+                fail(fileName, writer, ex);
+                if (quarantineFile == null) {
+                    throw ex;
+                }
+                return writeQuarantine(event);
+            }
+        }
+    }
+
 //----------------------------------------//
     /**
      * Отдает FileWriter для указанного имени файла или создает новый. В случае, если создан новый файл и FileWriter для
      * него, FileWriter будет закеширован строго по тому имени файла, которое переданного в аргументе. Таким образом,
      * остается замечательный баг, когда один и тот же файл может породить 2 FileWriter'а (например, "/myFile" и
      * "myFile"). Чтобы этого избежать, используйте в заголовках событий пути до файла в едином формате.
+     * <p>
+     * Если файл временно исключен из записи из-за ошибок, отдает FileWriter карантина.
      * 
      * @param fileName  имя файла, в который будет вестись запись
      */
@@ -114,15 +342,18 @@ public class FileManager {
             synchronized (this) {                
                 writer = writers.get(fileName);
                 if (writer == null) {
-                    OutputFile file = new OutputFile(directory, fileName);
-                    writer = new OutputWriter(compressor, file, eventSeparator);
+                    CircuitBreaker breaker = breakers.get(fileName);
+                    if (breaker != null && quarantineFile != null && breaker.isOpen(System.currentTimeMillis())) {
+                        return getQuarantineWriter();
+                    }
                     try {
-                        writer.init();
-                        counter.incFilesCreated();
-                    } catch (Exception e) {
-                        counter.intFilesFailed();
-                        writer.close();
-                        throw e;
+                        writer = openWriter(fileName, compressor, serializer, index, manifest);
+                    } catch (IOException ex) {
+                        if (quarantineFile == null) {
+                            throw ex;
+                        }
+                        fail(fileName, null, ex);
+                        return getQuarantineWriter();
                     }
                     writers.put(fileName, writer);
                     LOG.info("Writing new file: '{}' ", fileName); 
@@ -132,9 +363,81 @@ public class FileManager {
         return writer;
     }
 
+//----------------------------------------//
+    private OutputWriter openWriter(String fileName, Compressor compressor, EventSerializer serializer,
+            TimeIndex index, Manifest manifest) throws IOException {
+        OutputFile file = new OutputFile(volumeSelector.select(fileName), fileName);
+        OutputWriter writer = new OutputWriter(compressor, serializer, file, index, manifest);
+        try {
+            writer.init();
+            counter.incFilesCreated();
+        } catch (IOException e) {
+            counter.intFilesFailed();
+            writer.close();
+            throw e;
+        }
+        return writer;
+    }
+
+//----------------------------------------//
+    // Исключает файл из записи до наступления времени следующей попытки. Сам FileWriter (если он был открыт) закрывается
+    // в потоке тома.
+    private synchronized void fail(String fileName, OutputWriter writer, IOException ex) {
+        if (quarantineFile != null) {
+            CircuitBreaker breaker = breakers.get(fileName);
+            if (breaker == null) {
+                breaker = new CircuitBreaker(retryDelay, retryMaxDelay);
+                breakers.put(fileName, breaker);
+            }
+            long delay = breaker.fail(System.currentTimeMillis());
+            LOG.error("Unable to write file '" + fileName + "', its events will be quarantined for " + delay + "ms",
+                    ex);
+        } else {
+            LOG.error("Unable to write file '" + fileName + "'", ex);
+        }
+        if (writer != null) {
+            discard(fileName, writer);
+        }
+    }
+
+    // Закрывает файл, запись в который завершилась ошибкой. Писатель сам прекращает запись и при необходимости
+    // помечает файл как сбойный.
+    private void discard(String key, OutputWriter writer) {
+        counter.intFilesFailed();
+        Compactor current = writer != quarantineWriter ? compactor : null;
+        removeWriter(key, writer);
+        writer.getVolume().execute(() -> closeWriter(writer, current));
+    }
+
+//----------------------------------------//
+    private OutputWriter writeQuarantine(Event event) throws IOException {
+        while (true) {
+            OutputWriter writer = getQuarantineWriter();
+            try {
+                if (writer.write(event)) {
+                    counter.incEventQuarantined();
+                    return writer;
+                }
+            } catch (IOException ex) {
+                discard(quarantineFile, writer);
+                throw ex;
+            }
+        }
+    }
+
+    private synchronized OutputWriter getQuarantineWriter() throws IOException {
+        if (quarantineWriter == null) {
+            // без индекса и манифеста: карантин не предназначен для получателей файлов данных
+            quarantineWriter = openWriter(quarantineFile, quarantineCompressor, quarantineSerializer, null, null);
+            LOG.warn("Writing new quarantine file: '{}' ", quarantineFile);
+        }
+        return quarantineWriter;
+    }
+
 //----------------------------------------//
     /**
-     * Метод фоновой проверки открытых файлов на предмет неактивности.     
+     * Метод фоновой проверки открытых файлов на предмет неактивности. Сами сброс буферов и закрытие файлов выполняются
+     * в потоках соответствующих томов.
      */
     private void checkIdle() {
         Map<String, OutputWriter> toClose = new TreeMap<>();
@@ -146,6 +449,61 @@ public class FileManager {
         flushWriters(toFlush);
     }
     
+//----------------------------------------//
+    /**
+     * Метод фоновой проверки томов. Если какой-то из томов только что оказался под нагрузкой, сразу же проверяет файлы,
+     * не дожидаясь очередной проверки на неактивность. Выполняется в том же потоке, что и проверка неактивности.
+     * Общая нагрузка (по которой сток замедляет чтение) считается только по томам из текущей конфигурации.
+     */
+    private void checkDisks() {
+        List<Volume> all;
+        Set<Volume> selected = new HashSet<>();
+        Set<Volume> active = new HashSet<>();
+        DiskMonitor monitor;
+        synchronized (this) {
+            all = new ArrayList<>(volumes.values());
+            for (String root : selectorRoots) {
+                selected.add(volumes.get(root));
+            }
+            for (OutputWriter writer : writers.values()) {
+                active.add(writer.getVolume());
+            }
+            if (quarantineWriter != null) {
+                active.add(quarantineWriter.getVolume());
+            }
+            monitor = diskMonitor;
+        }
+        double max = 0;
+        long minFree = Long.MAX_VALUE;
+        long maxLatency = 0;
+        boolean raised = false;
+        for (Volume volume : all) {
+            double previous = volume.getPressure();
+            double current = monitor.check(volume, active.contains(volume));
+            raised |= current > previous;
+            // тома, исключенные из конфигурации, лишь быстрее закрывают оставшиеся на них файлы, но не замедляют сток
+            if (!selected.contains(volume)) {
+                continue;
+            }
+            max = Math.max(max, current);
+            minFree = Math.min(minFree, volume.getUsableSpace());
+            maxLatency = Math.max(maxLatency, TimeUnit.NANOSECONDS.toMillis(volume.getLatency()));
+        }
+        this.pressure = max;
+        counter.setDiskState(Math.round(max * 100), minFree, maxLatency);
+        if (raised) {
+            checkIdle();
+        }
+    }
+
+//----------------------------------------//
+    /**
+     * @return наибольшая нагрузка на тома от 0 (норма) до 1 (запись на какой-то из томов невозможна)
+     */
+    public double getPressure() {
+        return pressure;
+    }
+
 //----------------------------------------//
     // Метод синхронизирован для предотвращения конкурентного доступа к 'writers' Map.    
     private synchronized void gatherExpired(Map<String, OutputWriter> toClose, Map<String, OutputWriter> toFlush) {
@@ -154,15 +512,36 @@ public class FileManager {
             String key = e.getKey();
             OutputWriter writer = e.getValue();
             long idleTime = now - e.getValue().getLastWriteTime();
-            if (idleTime > idleTimeout) {
+            // файлы нагруженного тома сбрасываются при каждой проверке и закрываются уже после flushTimeout; файлы с
+            // ожидающими замерами задержки тоже сбрасываются при каждой проверке (если сжатие позволяет сбросить
+            // данные, см. OutputWriter#hasPendingLag) - иначе активно пишущийся файл не сбрасывался бы до закрытия
+            boolean pressed = writer.getVolume().getPressure() > 0;
+            if (idleTime > idleTimeout || (pressed && idleTime > flushTimeout)) {
                 toClose.put(key, writer);
-            } else if (idleTime > flushTimeout) {
+            } else if (idleTime > flushTimeout || pressed || writer.hasPendingLag()) {
                 toFlush.put(key, writer);
             }
         }
         if (!toClose.isEmpty()) {
             removeWriters(toClose.keySet());
         }
+        
+        // предохранители снимаются, как только файл после повторной попытки благополучно закрыт по бездействию, либо
+        // если к файлу так и не обращались
+        breakers.keySet().removeAll(toClose.keySet());
+        breakers.values().removeIf(b -> now - b.getRetryTime() > idleTimeout);
+        
+        // карантин обрабатывается отдельно, т.к. его имя может совпасть с именем обычного файла
+        OutputWriter quarantine = quarantineWriter;
+        if (quarantine != null) {
+            long idleTime = now - quarantine.getLastWriteTime();
+            if (idleTime > idleTimeout) {
+                quarantineWriter = null;
+                quarantine.getVolume().execute(() -> closeWriter(quarantine, null));
+            } else if (idleTime > flushTimeout) {
+                quarantine.getVolume().execute(() -> flushWriter(quarantine.getFileName(), quarantine));
+            }
+        }
     }
     
 //----------------------------------------//
@@ -173,53 +552,146 @@ public class FileManager {
         }
     }
     
+    private synchronized void removeWriter(String key, OutputWriter writer) {
+        if (key != null) {
+            writers.remove(key, writer);
+        }
+        if (quarantineWriter == writer) {
+            quarantineWriter = null;
+        }
+    }
+    
 //----------------------------------------//
     // Flush выполняеется вне синхронизированного блока, чтобы излишне не блокировать доступ к 'writers' Map.
     private void flushWriters(Map<String, OutputWriter> toFlush) {
-        if (!toFlush.isEmpty()) {
-            Map<String, OutputWriter> toClose = new TreeMap<>();
-            for (Map.Entry<String, OutputWriter> e : toFlush.entrySet()) {
-                OutputWriter writer = e.getValue();
-                String key = e.getKey();
-                try {
-                    writer.flush();
-                } catch (Throwable ex) {
-                    counter.intFilesFailed();
-                    LOG.error("Unexpected exception during flush buffer to file: " + e.getKey(), ex);
-                    toClose.put(key, writer);
-                }
-            }
-            if (!toClose.isEmpty()) {
-                // А вот здесь приодится лезть в синхронный метод, если вдруг появились файлы, которые нужно закрыть
-                removeWriters(toClose.keySet());
-                closeWriters(toClose);
-            }
+        for (Map.Entry<String, OutputWriter> e : toFlush.entrySet()) {
+            String key = e.getKey();
+            OutputWriter writer = e.getValue();
+            writer.getVolume().execute(() -> flushWriter(key, writer));
+        }
+    }
+
+    private void flushWriter(String key, OutputWriter writer) {
+        try {
+            writer.flush();
+        } catch (Throwable ex) {
+            counter.intFilesFailed();
+            LOG.error("Unexpected exception during flush buffer to file: " + key, ex);
+            // А вот здесь приодится лезть в синхронный метод, если вдруг появились файлы, которые нужно закрыть
+            writer.markFailed();
+            Compactor current = writer != quarantineWriter ? compactor : null;
+            removeWriter(key, writer);
+            closeWriter(writer, current);
         }
     }
     
 //----------------------------------------//    
     private void closeWriters(Map<String, OutputWriter> toClose) {
         if (!toClose.isEmpty()) {
-            for (Map.Entry<String, OutputWriter> e : toClose.entrySet()) {
-                OutputWriter writer = e.getValue();
-                writer.close();
-                counter.incFilesClosed();
-                LOG.info("File {} closed", writer.getFileName());
+            for (OutputWriter writer : toClose.values()) {
+                writer.getVolume().execute(() -> closeWriter(writer, compactor));
             }
-            LOG.info("{} idle files closed, {} files now in use", toClose.size(), writers.size());
+            LOG.info("{} idle files closing, {} files now in use", toClose.size(), writers.size());
         }
     }
+
+    // Небольшие файлы публикует компактор (если он передан) - после объединения. Карантин не объединяется.
+    private void closeWriter(OutputWriter writer, Compactor current) {
+        boolean failed = writer.isFailed();
+        writer.close(current);
+        if (!failed && writer.isFailed()) {
+            // остатки данных не удалось записать при закрытии
+            counter.intFilesFailed();
+        }
+        counter.incFilesClosed();
+        LOG.info("File {} closed", writer.getFileName());
+    }
     
+//----------------------------------------//
+    /**
+     * Отдает общий менеджер с указанным именем, при необходимости создавая его. Каждый вызов должен сопровождаться
+     * последующим вызовом {@link #release()}. Если менеджер уже создан, переданная конфигурация игнорируется. Счетчики
+     * файлов, карантина и дисков общий менеджер ведет в собственной группе счетчиков "shared-&lt;имя&gt;", т.к. стоки
+     * могут останавливаться в любом порядке.
+     *
+     * @param name  имя общего менеджера
+     */
+    public static FileManager acquire(String name, Context context) {
+        synchronized (SHARED) {
+            FileManager manager = SHARED.get(name);
+            if (manager == null) {
+                FileSinkCounter counter = new FileSinkCounter(SHARED_COUNTER_PREFIX + name);
+                counter.start();
+                manager = new FileManager(context, counter);
+                manager.sharedName = name;
+                SHARED.put(name, manager);
+            }
+            manager.references++;
+            LOG.info("Shared FileManager '{}' acquired, {} sinks use it", name, manager.references);
+            return manager;
+        }
+    }
+
+//----------------------------------------//
+    /**
+     * Освобождает менеджер. Для общего менеджера файлы закрываются, только когда его освободил последний сток, для
+     * обычного - сразу.
+     */
+    public void release() {
+        if (sharedName != null) {
+            synchronized (SHARED) {
+                references--;
+                LOG.info("Shared FileManager '{}' released, {} sinks use it", sharedName, references);
+                if (references > 0) {
+                    return;
+                }
+                SHARED.remove(sharedName);
+            }
+            closeAll();
+            counter.stop();
+            return;
+        }
+        closeAll();
+    }
+
+//----------------------------------------//
+    /**
+     * @return является ли менеджер общим (см. {@link #acquire(String, Context)})
+     */
+    public boolean isShared() {
+        return sharedName != null;
+    }
+
 //----------------------------------------//
     /**
      * Закрывает все открытые файлы.
      */
-    public synchronized void closeAll(){
+    public void closeAll(){
+        Compactor current = compactor;
+        if (current != null) {
+            current.shutdown();
+        }
         idleChecker.shutdown();
-        for (OutputWriter writer : writers.values()) {
-            writer.close();
+        try {
+            idleChecker.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        // дожидаемся уже запланированных сбросов и закрытий - вне блокировки, т.к. они сами обращаются к 'writers'
+        for (Volume volume : volumes.values()) {
+            volume.shutdown();
+        }
+        synchronized (this) {
+            for (OutputWriter writer : writers.values()) {
+                writer.close();
+            }
+            if (quarantineWriter != null) {
+                quarantineWriter.close();
+                quarantineWriter = null;
+            }
+            LOG.info("All {} files closed", writers.size());
+            writers.clear();
+            breakers.clear();
         }
-        LOG.info("All {} files closed", writers.size());
-        writers.clear();
     }    
 }
@@ -1,6 +1,7 @@
 package ru.flume.sink.writer;
 
 import java.io.File;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Класс для управления именами файлов, использующихся при записи логов. Позволяет генерировать имена для
@@ -9,11 +10,30 @@ import java.io.File;
 public class OutputFile {
 
     private static final String TEMP_EXTENSION = ".tmp";
+
+    /**
+     * Расширение закрытых файлов, ожидающих объединения (см. {@link Compactor})
+     */
+    public static final String PENDING_EXTENSION = ".pending";
+
+    // блокировки публикации итоговых файлов, выбираются по хешу пути файла без расширения (см. getPublishLock)
+    private static final Object[] PUBLISH_LOCKS = new Object[64];
+
+    static {
+        for (int i = 0; i < PUBLISH_LOCKS.length; i++) {
+            PUBLISH_LOCKS[i] = new Object();
+        }
+    }
     
+    private final Volume volume;
     private File parent;
     private String name;
     
-    private long ts = System.currentTimeMillis();
+    // последняя выданная метка времени - метки уникальны, чтобы временные файлы с одним именем, созданные в одну
+    // миллисекунду (например, файл данных и карантин с тем же именем), не совпали
+    private static final AtomicLong LAST_TS = new AtomicLong();
+
+    private long ts = LAST_TS.updateAndGet(last -> Math.max(last + 1, System.currentTimeMillis()));
 
 //----------------------------------------//    
     /**
@@ -21,10 +41,12 @@ public class OutputFile {
      * относительным путём (т.е. в качестве имени файла можно передать не только "myFile", но и "my/files/myFile").
      * Расширение файла указывать не требуется, оно присваивается автоматически.
      *
-     * @param root корневая папка для записи файлов
+     * @param volume том, корневая папка которого используется для записи файлов
      * @param fileName относительный путь к файлу
      */
-    public OutputFile(File root, String fileName) {
+    public OutputFile(Volume volume, String fileName) {
+        this.volume = volume;
+        File root = volume.getRoot();
         fileName = fileName.replace("\\", "/");
         
         // если по какой то причине указан абсолютный путь - считаем это опечаткой, чтобы не выходить за пределы
@@ -55,6 +77,14 @@ public class OutputFile {
         }      
     }
 
+//----------------------------------------//
+    /**
+     * @return том, на котором размещается файл
+     */
+    public Volume getVolume() {
+        return volume;
+    }
+
 //----------------------------------------//
     /**
      * @return папку, в которой будет размещен файл
@@ -84,6 +114,19 @@ public class OutputFile {
         }
         return output;
     }
+//----------------------------------------//
+    /**
+     * Выбор свободного итогового имени ({@link #getOutput(String)}) и переименование файла в него должны выполняться
+     * под этой блокировкой. Она общая для всех файлов с тем же путем, так что файлы, закрываемые одновременно
+     * (например, писателем и компактором или писателями общего менеджера), не займут одно и то же имя и не заменят
+     * друг друга.
+     *
+     * @return блокировка публикации файлов с этим именем
+     */
+    public Object getPublishLock() {
+        return PUBLISH_LOCKS[Math.floorMod(new File(parent, name).hashCode(), PUBLISH_LOCKS.length)];
+    }
+
 //----------------------------------------//
     /**
      * @return временный файл для записи
@@ -91,4 +134,21 @@ public class OutputFile {
     public File getTemp() {
         return new File(parent, name + "." + ts + TEMP_EXTENSION);
     }
+
+//----------------------------------------//
+    /**
+     * @return закрытый файл, ожидающий объединения с другими (еще не опубликованный под итоговым именем)
+     */
+    public File getPending() {
+        return new File(parent, name + "." + ts + PENDING_EXTENSION);
+    }
+
+//----------------------------------------//
+    /**
+     * @param sidecar   расширение файла-спутника (например, индекса)
+     * @return временный файл для записи файла-спутника
+     */
+    public File getTemp(String sidecar) {
+        return new File(parent, name + "." + ts + sidecar + TEMP_EXTENSION);
+    }
 }
@@ -1,5 +1,6 @@
 package ru.flume.sink.writer;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
@@ -11,43 +12,83 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import ru.flume.sink.compressor.Compressor;
+import ru.flume.sink.counter.LagHistogram;
+import ru.flume.sink.index.TimeIndex;
+import ru.flume.sink.index.TimeIndexWriter;
+import ru.flume.sink.manifest.Manifest;
+import ru.flume.sink.manifest.ManifestWriter;
+import ru.flume.sink.serializer.EventSerializer;
 
 /**
- * Класс для записи данных в файл. Непотокобезопасный, синхронизацию, если необходимо, нужно регулировать извне.
+ * Класс для записи данных в файл. Потокобезопасный: в один файл могут писать несколько стоков с общим FileManager'ом.
  * На время записи создается временный файл с расширением .tmp, при закрытии файла происходит его переименование.
+ * Если запись в файл завершилась ошибкой, файл по возможности возвращается к концу последнего целого события и
+ * публикуется как обычно, а иначе получает дополнительное расширение {@value #FAILED_EXTENSION}.
  * Конечныое расширение файла зависит от выбранного алгоритма сжатия.
  */
 public class OutputWriter {
 
     private static final Logger LOG = LoggerFactory.getLogger(OutputWriter.class);
 
+    // сколько учитываемых событий может ожидать сброса на диск - при переполнении самые старые отбрасываются
+    private static final int MAX_PENDING_LAG = 256;
+
+    // время записи замеряется для каждого такого по счету события (см. Volume#recordLatency) - при медленном диске
+    // блокируется именно запись в поток стока, а сброс буфера сжатого потока может вовсе не обращаться к диску
+    private static final int LATENCY_SAMPLE_RATE = 16;
+
+    // буфер события, выросший больше этого размера, после записи не сохраняется
+    private static final int MAX_BUFFER_SIZE = 1024 * 1024;
+
+    public static final String FAILED_EXTENSION = ".failed";
+
     private final OutputFile file;
-    private final byte[] eventSeparator;    
+    private final EventSerializer serializer;
+    private final TimeIndex index;
+    private final Manifest manifest;
 
     private Compressor compressor;
+    private FileOutputStream out;
+    private PositionOutputStream position;
     private OutputStream stream;
-    private EventWriter eventWriter;    
+    private SeparatorWriter separatorWriter;
+    private TimeIndexWriter indexWriter;
+    private ManifestWriter manifestWriter;
     
+    private ByteArrayOutputStream buffer = new ByteArrayOutputStream(1024);
+    private long events;
+    private boolean closed;
+    // запись прекращена после ошибки - файл закрывается, но данные в нем целые
+    private boolean stopped;
+    private boolean failed;
+    private File output;
+    
+    // события, задержка записи которых будет учтена при ближайшем сбросе на диск (кольцевой буфер)
+    private long[] lagTimes;
+    private LagHistogram[] lagHistograms;
+    private int lagStart;
+    private volatile int lagCount;
     private volatile long lastWriteTime; 
 
 //----------------------------------------//
     /**
      * Создает писатель для указанного файла. НЕ создает/открывает файл автоматически. Непосредственное обращение к
      * файлу и открытие его для записи происходит при записи первой порции данных.
+     *
+     * @param serializer  формат записи событий
+     * @param index       настройки индекса по времени или null, если индекс не нужен
+     * @param manifest    настройки манифеста или null, если манифест не нужен
      */
-    public OutputWriter(Compressor compressor, OutputFile file, String eventSeparator) {
+    public OutputWriter(Compressor compressor, EventSerializer serializer, OutputFile file, TimeIndex index,
+            Manifest manifest) {
         this.file = file;
         this.compressor = compressor;
+        this.serializer = serializer;
+        this.index = index;
+        this.manifest = manifest;
         this.lastWriteTime = System.currentTimeMillis();
         
-        // если делителя между событиями нет, то данные будут писаться в файл "как есть" - все байты подряд
-        if (eventSeparator != null && !eventSeparator.isEmpty()) {
-            this.eventSeparator = eventSeparator.getBytes();            
-            this.eventWriter = this::writeFirst;
-        } else {
-            this.eventSeparator = null;
-            this.eventWriter = this::writeData;
-        }   
+        this.separatorWriter = serializer.hasSeparator() ? this::skipSeparator : this::noSeparator;
     }
     
 //----------------------------------------//
@@ -60,34 +101,128 @@ public class OutputWriter {
         if (!file.getParent().exists()) {
             file.getParent().mkdirs();
         }
-        stream = compressor.wrap(new FileOutputStream(file.getTemp()));
+        out = new FileOutputStream(file.getTemp());
+        OutputStream target = out;
+        if (manifest != null) {
+            // контрольная сумма считается по сжатым данным, т.е. ровно по тем байтам, что попадут в файл
+            manifestWriter = manifest.open();
+            target = manifestWriter.wrap(out);
+        }
+        position = new PositionOutputStream(target);
+        stream = compressor.wrap(position);
+        if (index != null) {
+            indexWriter = index.open(file.getTemp(TimeIndex.EXTENSION));
+        }
     }
     
 //----------------------------------------//
     /**
-     * Записывает событие флюма в файл, обновляет время последнего обращения к этому файлу. Метод непотокобезопасный.
+     * Записывает событие флюма в файл, обновляет время последнего обращения к этому файлу. Пропускает события, которые
+     * формат записи не принимает (см. {@link EventSerializer#accepts(Event)}).
+     * <p>
+     * Событие сначала целиком собирается в буфере, так что ошибка сериализации не оставляет в файле его части. Если
+     * ошибкой завершилась запись в файл, запись в него прекращается: несжатый файл возвращается к концу последнего
+     * целого события, а сжатый (часть данных которого осталась в потоке сжатия) считается сбойным.
+     *
+     * @return false, если файл уже закрыт и событие не записано
      */
-    public void write(Event event) throws IOException {
-        if (event.getBody().length > 0) {
+    public synchronized boolean write(Event event) throws IOException {
+        if (closed || stopped || failed) {
+            return false;
+        }
+        if (serializer.accepts(event)) {
             lastWriteTime = System.currentTimeMillis();
-            eventWriter.write(event.getBody());
+            buffer.reset();
+            separatorWriter.write();
+            serializer.write(event, buffer);
+
+            long committed = position.getPosition();
+            boolean timed = events % LATENCY_SAMPLE_RATE == 0;
+            long start = timed ? System.nanoTime() : 0;
+            try {
+                if (indexWriter != null && index.isSampled(events)) {
+                    indexWriter.add(events, index.getTimestamp(event), mark());
+                }
+                buffer.writeTo(stream);
+            } catch (IOException ex) {
+                stopped = true;
+                // несжатые данные пишутся прямо в файл, поэтому все до 'committed' уже на диске
+                if (stream != position || !truncate(committed)) {
+                    failed = true;
+                }
+                throw ex;
+            }
+            if (timed) {
+                getVolume().recordLatency(System.nanoTime() - start);
+            }
+            if (buffer.size() > MAX_BUFFER_SIZE) {
+                buffer = new ByteArrayOutputStream(1024);
+            }
+            if (manifestWriter != null) {
+                manifestWriter.add(event);
+            }
+            events++;
+        }
+        return true;
+    }
+
+    // Отрезает от файла недописанное событие
+    private boolean truncate(long size) {
+        try {
+            out.getChannel().truncate(size);
+            LOG.warn("File {} truncated to the last complete event ({} bytes)", file.getTemp(), size);
+            return true;
+        } catch (IOException ex) {
+            LOG.error("Unable to truncate file " + file.getTemp(), ex);
+            return false;
         }
     }
     
-    // EventWriter и вся эта чехарда с лямбдами используется только для того, чтобы не заканчивать файл пустой строкой
-    // и не проверять каждый раз какой-нибудь флаг типа "isFirstLine".
-    private void writeData(byte[] data) throws IOException  {
-        stream.write(data);
+    // SeparatorWriter и вся эта чехарда с лямбдами используется только для того, чтобы не заканчивать файл пустой
+    // строкой и не проверять каждый раз какой-нибудь флаг типа "isFirstLine".
+    private void noSeparator() {
     }
     
-    private void writeFirst(byte[] data) throws IOException {
-        stream.write(data);
-        eventWriter = this::writeNext;
+    private void skipSeparator() {
+        separatorWriter = this::writeSeparator;
     }
     
-    private void writeNext(byte[] data) throws IOException {
-        stream.write(eventSeparator);
-        stream.write(data);
+    private void writeSeparator() throws IOException {
+        serializer.writeSeparator(buffer);
+    }
+
+//----------------------------------------//
+    // Возвращает смещение, с которого можно читать файл начиная со следующего события. Для сжатых файлов текущий поток
+    // завершается и начинается новый - так следующее событие окажется в начале отдельного члена GZIP.
+    private long mark() throws IOException {
+        if (!compressor.isConcatenable()) {
+            return -1;
+        }
+        if (events > 0) {
+            stream.close();
+            recordLag();
+            long offset = position.getPosition();
+            stream = compressor.wrap(position);
+            return offset;
+        }
+        return 0;
+    }
+
+//----------------------------------------//
+    /**
+     * Помечает файл как сбойный: например, событие записано в него лишь частично. Запись в файл прекращается, а при
+     * закрытии он не получает итогового имени - к нему добавляется {@value #FAILED_EXTENSION}, а манифест не пишется.
+     */
+    public synchronized void markFailed() {
+        failed = true;
+    }
+
+//----------------------------------------//
+    /**
+     * @return помечен ли файл как сбойный (см. {@link #markFailed()})
+     */
+    public synchronized boolean isFailed() {
+        return failed;
     }
 
 //----------------------------------------//
@@ -95,25 +230,121 @@ public class OutputWriter {
      * Делегат аналогичного метода от потока записи.
      */
     public synchronized void flush() throws IOException{
+        if (closed) {
+            return;
+        }
+        long start = System.nanoTime();
         stream.flush();
+        getVolume().recordLatency(System.nanoTime() - start);
+        if (compressor.isFlushable()) {
+            recordLag();
+        }
+    }
+
+//----------------------------------------//
+    /**
+     * Учитывает задержку записи события, когда оно действительно окажется в файле: при ближайшем flush(), если поток
+     * сжатия сбрасывает все данные (см. {@link Compressor#isFlushable()}), при завершении члена GZIP для индекса или
+     * при закрытии файла. Если ожидающих сброса событий слишком много, самое старое из них не учитывается.
+     *
+     * @param histogram распределение, в котором учитывается задержка
+     * @param eventTime время события
+     */
+    public synchronized void trackLag(LagHistogram histogram, long eventTime) {
+        if (lagTimes == null) {
+            lagTimes = new long[MAX_PENDING_LAG];
+            lagHistograms = new LagHistogram[MAX_PENDING_LAG];
+        }
+        int count = lagCount;
+        if (count == MAX_PENDING_LAG) {
+            lagStart = (lagStart + 1) % MAX_PENDING_LAG;
+            count--;
+        }
+        int index = (lagStart + count) % MAX_PENDING_LAG;
+        lagTimes[index] = eventTime;
+        lagHistograms[index] = histogram;
+        lagCount = count + 1;
+    }
+
+//----------------------------------------//
+    /**
+     * @return есть ли события, задержка записи которых будет учтена при ближайшем flush()
+     */
+    public boolean hasPendingLag() {
+        return lagCount > 0 && compressor.isFlushable();
+    }
+
+    private synchronized void recordLag() {
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < lagCount; i++) {
+            int index = (lagStart + i) % MAX_PENDING_LAG;
+            lagHistograms[index].record(now - lagTimes[index]);
+            lagHistograms[index] = null;
+        }
+        lagStart = 0;
+        lagCount = 0;
     }
     
 //----------------------------------------//
     /**
-     * Закрывает файл, записывая остатки буфера в него. После этого переименовывает файл в конечный вид.
+     * Закрывает файл, записывая остатки буфера в него. После этого переименовывает файл в конечный вид. Индекс (если
+     * есть) переименовывается непосредственно перед файлом данных, так что к появлению файла данных индекс уже готов.
+     * Манифест (если есть), наоборот, появляется последним - после него файл можно забирать. Если остатки данных
+     * записать не удалось, файл считается сбойным (см. {@link #markFailed()}).
      */
-    public void close() {
-        File output = file.getOutput(compressor.getExtension());
+    public synchronized void close() {
+        close(null);
+    }
+
+//----------------------------------------//
+    /**
+     * Закрывает файл так же, как {@link #close()}, но небольшой файл без индекса вместо публикации передается
+     * компактору (см. {@link Compactor#hold(OutputWriter)}), который сам опубликует его - отдельно или вместе с
+     * другими файлами с тем же именем.
+     *
+     * @param compactor компактор или null, если объединение файлов не включено
+     */
+    synchronized void close(Compactor compactor) {
+        if (closed) {
+            return;
+        }
+        closed = true;
         File temp = file.getTemp();
         if (stream != null) {
             try {
+                long start = System.nanoTime();
                 stream.flush();
                 stream.close();
+                getVolume().recordLatency(System.nanoTime() - start);
             } catch (IOException ex) {
-                LOG.error("Exception while close stream for file: " + output, ex);
+                LOG.error("Exception while close stream for file: " + temp, ex);
+                failed = true;
+            }
+        }
+        if (out != null) {
+            // закрытие сжатого потока не закрывает сам файл (см. PositionOutputStream)
+            try {
+                out.close();
+            } catch (IOException ex) {
+                LOG.error("Exception while close file: " + temp, ex);
+                failed = true;
+            }
+        }
+        recordLag();
+        if (compactor != null && !failed && indexWriter == null && out != null && compactor.hold(this)) {
+            return;
+        }
+        boolean renamed;
+        synchronized (file.getPublishLock()) {
+            output = file.getOutput(compressor.getExtension() + (failed ? FAILED_EXTENSION : ""));
+            if (indexWriter != null) {
+                indexWriter.commit(output);
             }
+            renamed = temp.renameTo(output);
         }        
-        temp.renameTo(output);
+        if (renamed && manifestWriter != null && !failed) {
+            manifestWriter.commit(output);
+        }
     }
     
 //----------------------------------------//
@@ -131,11 +362,67 @@ public class OutputWriter {
     public String getFileName() {
         return file.getName();
     }
+
+//----------------------------------------//
+    /**
+     * @return имена файла
+     */
+    public OutputFile getFile() {
+        return file;
+    }
+
+//----------------------------------------//
+    /**
+     * @return итоговый файл или null, если файл еще не закрыт
+     */
+    public synchronized File getOutput() {
+        return output;
+    }
+
+//----------------------------------------//
+    /**
+     * @return алгоритм сжатия, с которым пишется файл
+     */
+    public Compressor getCompressor() {
+        return compressor;
+    }
+
+//----------------------------------------//
+    /**
+     * @return статистика для манифеста или null, если манифест для файла не пишется
+     */
+    ManifestWriter getManifestWriter() {
+        return manifestWriter;
+    }
+
+//----------------------------------------//
+    /**
+     * @return сколько байт записано в файл
+     */
+    public synchronized long getSize() {
+        return position != null ? position.getPosition() : 0;
+    }
+
+//----------------------------------------//
+    /**
+     * @return формат, в котором пишется файл
+     */
+    public EventSerializer getSerializer() {
+        return serializer;
+    }
+
+//----------------------------------------//
+    /**
+     * @return том, на котором размещается файл
+     */
+    public Volume getVolume() {
+        return file.getVolume();
+    }
      
 //****************************************//  
 
-    private static interface EventWriter {
+    private static interface SeparatorWriter {
 
-        public void write(byte[] data) throws IOException;
+        public void write() throws IOException;
     }
 }
@@ -0,0 +1,44 @@
+package ru.flume.sink.writer;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Поток, считающий количество байт, записанных в файл (т.е. текущую позицию в файле). Закрытие потока НЕ закрывает
+ * файл - это позволяет завершать и начинать заново сжатый поток поверх одного и того же файла (например, писать
+ * несколько членов GZIP подряд). Сам файл закрывается владельцем отдельно.
+ */
+class PositionOutputStream extends FilterOutputStream {
+
+    private long position;
+
+    PositionOutputStream(OutputStream out) {
+        super(out);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        out.write(b);
+        position++;
+    }
+
+    // FilterOutputStream по умолчанию пишет массив побайтно, поэтому переопределяем
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        out.write(b, off, len);
+        position += len;
+    }
+
+    @Override
+    public void close() throws IOException {
+        out.flush();
+    }
+
+    /**
+     * @return количество байт, записанных в файл
+     */
+    long getPosition() {
+        return position;
+    }
+}
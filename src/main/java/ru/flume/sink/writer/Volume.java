@@ -0,0 +1,154 @@
+package ru.flume.sink.writer;
+
+import java.io.File;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Том - одна из корневых папок стока (как правило, отдельный диск). У каждого тома есть собственный поток для фоновых
+ * операций ввода-вывода (сброс буферов, закрытие и переименование файлов), чтобы медленный диск не задерживал
+ * обслуживание файлов на остальных дисках.
+ */
+public class Volume {
+
+    private static final Logger LOG = LoggerFactory.getLogger(Volume.class);
+
+    private final File root;
+    private final ExecutorService executor;
+
+    // скользящее среднее времени записи и сброса данных на диск (нс), время последнего замера и текущая нагрузка на том
+    // (см. DiskMonitor)
+    private volatile long latency;
+    private volatile long latencyTime;
+    private volatile double pressure;
+
+//----------------------------------------//
+    /**
+     * @param root  корневая папка тома
+     */
+    public Volume(File root) {
+        this.root = root;
+        this.executor = Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "file-sink-io " + root);
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+//----------------------------------------//
+    /**
+     * @return корневая папка тома
+     */
+    public File getRoot() {
+        return root;
+    }
+
+//----------------------------------------//
+    /**
+     * @return свободное место на томе в байтах (0, если папка недоступна)
+     */
+    public long getUsableSpace() {
+        File dir = existing();
+        return dir == null ? 0 : dir.getUsableSpace();
+    }
+
+//----------------------------------------//
+    /**
+     * @return общий объем тома в байтах (0, если папка недоступна)
+     */
+    public long getTotalSpace() {
+        File dir = existing();
+        return dir == null ? 0 : dir.getTotalSpace();
+    }
+
+    // сама корневая папка может быть еще не создана - тогда смотрим на ближайшую существующую
+    private File existing() {
+        File dir = root;
+        while (dir != null && !dir.exists()) {
+            dir = dir.getAbsoluteFile().getParentFile();
+        }
+        return dir;
+    }
+
+//----------------------------------------//
+    /**
+     * Учитывает время очередной записи (выборочно, см. OutputWriter) или сброса данных на диск в скользящем среднем.
+     * Среднее начинается с нуля, так что один медленный замер (например, закрытие большого сжатого файла) сам по себе
+     * не делает том нагруженным.
+     *
+     * @param nanos время операции в нс
+     */
+    void recordLatency(long nanos) {
+        latency = (latency * 7 + nanos) / 8;
+        latencyTime = System.currentTimeMillis();
+    }
+
+//----------------------------------------//
+    /**
+     * Сбрасывает среднее время записи, если последний замер сделан раньше указанного времени. Без этого том,
+     * на который перестали писать, навсегда сохранил бы последнее (возможно, критическое) значение.
+     */
+    void expireLatency(long before) {
+        if (latencyTime < before) {
+            latency = 0;
+        }
+    }
+
+//----------------------------------------//
+    /**
+     * @return скользящее среднее времени записи и сброса данных на диск (нс)
+     */
+    public long getLatency() {
+        return latency;
+    }
+
+//----------------------------------------//
+    /**
+     * @return нагрузка на том от 0 (норма) до 1 (запись невозможна)
+     */
+    public double getPressure() {
+        return pressure;
+    }
+
+    void setPressure(double pressure) {
+        this.pressure = pressure;
+    }
+
+//----------------------------------------//
+    /**
+     * Выполняет задачу в потоке ввода-вывода тома. Если том уже остановлен, задача выполняется в текущем потоке.
+     */
+    void execute(Runnable task) {
+        try {
+            executor.execute(task);
+        } catch (RejectedExecutionException ex) {
+            task.run();
+        }
+    }
+
+//----------------------------------------//
+    /**
+     * Останавливает поток ввода-вывода, дожидаясь выполнения уже поставленных задач.
+     */
+    void shutdown() {
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(1, TimeUnit.MINUTES)) {
+                LOG.warn("I/O tasks for volume {} were not completed in time", root);
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+//----------------------------------------//
+    @Override
+    public String toString() {
+        return root.toString();
+    }
+}
@@ -0,0 +1,91 @@
+package ru.flume.sink.writer;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Распределяет файлы по томам с помощью консистентного хеширования: одно и то же имя файла всегда попадает на один и тот
+ * же том, а при изменении набора томов переезжает лишь небольшая часть имен. Это важно для именования при коллизиях
+ * (индекс " (1)" назначается в пределах тома) - файлы с одинаковым именем должны оказываться в одной папке.
+ * <p>
+ * Опционально вес тома на "кольце" пропорционален свободному месту. Вес округляется до четвертей от максимального, чтобы
+ * небольшие колебания свободного места между перезапусками не меняли раскладку.
+ */
+public class VolumeSelector {
+
+    private static final Logger LOG = LoggerFactory.getLogger(VolumeSelector.class);
+
+    // число виртуальных узлов на том с единичным весом
+    private static final int VIRTUAL_NODES = 160;
+    // количество шагов, до которых округляется вес тома
+    private static final int WEIGHT_STEPS = 4;
+
+    private final TreeMap<Long, Volume> ring = new TreeMap<>();
+    private final Volume single;
+
+//----------------------------------------//
+    /**
+     * @param volumes   список томов (не пустой)
+     * @param weighted  учитывать ли свободное место на томах
+     */
+    public VolumeSelector(List<Volume> volumes, boolean weighted) {
+        if (volumes.size() == 1) {
+            this.single = volumes.get(0);
+            return;
+        }
+        this.single = null;
+
+        long maxSpace = 0;
+        if (weighted) {
+            for (Volume volume : volumes) {
+                maxSpace = Math.max(maxSpace, volume.getUsableSpace());
+            }
+        }
+        for (Volume volume : volumes) {
+            int steps = WEIGHT_STEPS;
+            if (maxSpace > 0) {
+                steps = (int) Math.ceil((double) volume.getUsableSpace() * WEIGHT_STEPS / maxSpace);
+                steps = Math.max(1, steps);
+            }
+            int nodes = VIRTUAL_NODES * steps / WEIGHT_STEPS;
+            for (int i = 0; i < nodes; i++) {
+                ring.put(hash(volume.getRoot().getPath() + "#" + i), volume);
+            }
+            LOG.info("Volume {}: weight {}/{}", volume, steps, WEIGHT_STEPS);
+        }
+    }
+
+//----------------------------------------//
+    /**
+     * @return том, на котором должен размещаться файл с указанным именем
+     */
+    public Volume select(String fileName) {
+        if (single != null) {
+            return single;
+        }
+        Map.Entry<Long, Volume> entry = ring.ceilingEntry(hash(fileName));
+        return entry != null ? entry.getValue() : ring.firstEntry().getValue();
+    }
+
+//----------------------------------------//
+    // FNV-1a с перемешиванием из MurmurHash3: результат не зависит от JVM, в отличие от String.hashCode() не
+    // группирует похожие имена файлов рядом на кольце
+    private static long hash(String value) {
+        long h = 0xcbf29ce484222325L;
+        for (byte b : value.getBytes(StandardCharsets.UTF_8)) {
+            h ^= b & 0xff;
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}